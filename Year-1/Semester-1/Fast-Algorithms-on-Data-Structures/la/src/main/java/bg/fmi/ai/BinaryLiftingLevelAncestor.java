@@ -0,0 +1,62 @@
+package bg.fmi.ai;
+
+/**
+ * Binary Lifting - every node stores its ancestors at distances 1, 2, 4, ..., up to the tree height.
+ * Preprocessing and space O(N log H), query O(log H) with very small constants.
+ * Good for small or shallow trees, where log H is only a few levels.
+ */
+public class BinaryLiftingLevelAncestor implements LevelAncestor {
+
+  private final RootedTree tree;
+  private final int[] depth;
+  // up[k][v] = the 2^k-th ancestor of v (the root if the jump goes beyond it)
+  private int[][] up;
+
+  public BinaryLiftingLevelAncestor(int nodesCount) {
+    tree = new RootedTree(nodesCount);
+    depth = new int[nodesCount];
+  }
+
+  @Override
+  public void addEdge(int parent, int child) {
+    tree.addEdge(parent, child);
+  }
+
+  @Override
+  public void preprocess(int root) {
+
+    int[] parent = new int[tree.nodesCount];
+    int[] order = tree.preorder(root, parent, depth);
+
+    int maxDepth = 0;
+    for (int node : order) {
+      maxDepth = Math.max(maxDepth, depth[node]);
+    }
+    int levels = Math.max(1, 32 - Integer.numberOfLeadingZeros(maxDepth));
+
+    up = new int[levels][];
+    up[0] = parent;
+    for (int k = 1; k < levels; k++) {
+      int[] previous = up[k - 1];
+      int[] current = new int[tree.nodesCount];
+      for (int v = 0; v < tree.nodesCount; v++) {
+        current[v] = previous[previous[v]];
+      }
+      up[k] = current;
+    }
+  }
+
+  @Override
+  public int query(int u, int targetDepth) {
+
+    if (depth[u] < targetDepth || targetDepth < 0) return -1;
+
+    // One jump per set bit of the distance
+    int dist = depth[u] - targetDepth;
+    while (dist != 0) {
+      u = up[Integer.numberOfTrailingZeros(dist)][u];
+      dist &= dist - 1;
+    }
+    return u;
+  }
+}
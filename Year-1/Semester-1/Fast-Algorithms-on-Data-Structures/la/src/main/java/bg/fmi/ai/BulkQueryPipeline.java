@@ -0,0 +1,128 @@
+package bg.fmi.ai;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Answers a binary query file against one preprocessed index.
+ * <p>
+ * Input: (node, targetDepth) pairs of big-endian ints. Output: one big-endian int answer per pair
+ * (-1 if the node is higher than targetDepth, the node does not exist or the depth is negative).
+ * <p>
+ * Both files are memory-mapped chunk by chunk (a single mapping is limited to 2 GB) and the chunks
+ * are answered in parallel on a fork-join pool. The hot loop reads and writes the mappings directly,
+ * so nothing is allocated per query.
+ */
+public final class BulkQueryPipeline {
+
+  public static final int DEFAULT_CHUNK_QUERIES = 1 << 20;
+
+  private static final int QUERY_BYTES = 2 * Integer.BYTES;
+  private static final int ANSWER_BYTES = Integer.BYTES;
+
+  private final LevelAncestor index;
+  private final int nodesCount;
+  private final int chunkQueries;
+
+  public BulkQueryPipeline(LevelAncestor index, int nodesCount) {
+    this(index, nodesCount, DEFAULT_CHUNK_QUERIES);
+  }
+
+  public BulkQueryPipeline(LevelAncestor index, int nodesCount, int chunkQueries) {
+
+    if (chunkQueries <= 0) throw new IllegalArgumentException("chunkQueries must be positive");
+    this.index = index;
+    this.nodesCount = nodesCount;
+    this.chunkQueries = chunkQueries;
+  }
+
+  /**
+   * Answers every query of 'input' into 'output' (created or overwritten) on the common pool.
+   * Returns the number of answered queries.
+   */
+  public long run(Path input, Path output) throws IOException {
+    return run(input, output, ForkJoinPool.commonPool());
+  }
+
+  public long run(Path input, Path output, ForkJoinPool pool) throws IOException {
+
+    try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+         FileChannel out = FileChannel.open(output, StandardOpenOption.READ, StandardOpenOption.WRITE,
+           StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+      if (in.size() % QUERY_BYTES != 0) {
+        throw new IllegalArgumentException("The query file size is not a multiple of " + QUERY_BYTES);
+      }
+      long queries = in.size() / QUERY_BYTES;
+      if (queries == 0) return 0;
+
+      // Size the output once, so the chunks never extend the file concurrently
+      out.write(ByteBuffer.allocate(1), queries * ANSWER_BYTES - 1);
+
+      long chunks = (queries + chunkQueries - 1) / chunkQueries;
+      try {
+        pool.invoke(new ChunkRange(in, out, queries, 0, chunks));
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+
+      out.force(false);
+      return queries;
+    }
+  }
+
+  // Splits [fromChunk, toChunk) in halves until a single chunk is left
+  private final class ChunkRange extends RecursiveAction {
+
+    private final FileChannel in, out;
+    private final long queries, fromChunk, toChunk;
+
+    ChunkRange(FileChannel in, FileChannel out, long queries, long fromChunk, long toChunk) {
+      this.in = in;
+      this.out = out;
+      this.queries = queries;
+      this.fromChunk = fromChunk;
+      this.toChunk = toChunk;
+    }
+
+    @Override
+    protected void compute() {
+
+      if (toChunk - fromChunk > 1) {
+        long middle = (fromChunk + toChunk) >>> 1;
+        invokeAll(new ChunkRange(in, out, queries, fromChunk, middle),
+          new ChunkRange(in, out, queries, middle, toChunk));
+        return;
+      }
+
+      long first = fromChunk * chunkQueries;
+      int count = (int) Math.min(chunkQueries, queries - first);
+      try {
+        IntBuffer requests = in.map(FileChannel.MapMode.READ_ONLY, first * QUERY_BYTES, (long) count * QUERY_BYTES)
+          .asIntBuffer();
+        IntBuffer answers = out.map(FileChannel.MapMode.READ_WRITE, first * ANSWER_BYTES, (long) count * ANSWER_BYTES)
+          .asIntBuffer();
+        answerChunk(requests, answers, count);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private void answerChunk(IntBuffer requests, IntBuffer answers, int count) {
+
+    for (int q = 0; q < count; q++) {
+      int node = requests.get(2 * q);
+      int targetDepth = requests.get(2 * q + 1);
+      boolean valid = node >= 0 && node < nodesCount; // Negative depths are -1 in every engine
+      answers.put(q, valid ? index.query(node, targetDepth) : -1);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package bg.fmi.ai;
+
+/**
+ * Jump Pointers + Ladders for every node, without the Macro-Micro decomposition.
+ * Preprocessing and space O(N log H), query O(1): one jump pointer and one ladder lookup.
+ */
+public class JumpLadderLevelAncestor implements LevelAncestor {
+
+  private final RootedTree tree;
+  private final int[] depth;
+  // jump[k][v] = the 2^k-th ancestor of v (the root if the jump goes beyond it)
+  private int[][] jump;
+  // All ladders stored back to back: ladderNodes[ladderIndex[v] - j] is the ancestor of v at distance j
+  private int[] ladderNodes;
+  private final int[] ladderIndex;
+
+  public JumpLadderLevelAncestor(int nodesCount) {
+    tree = new RootedTree(nodesCount);
+    depth = new int[nodesCount];
+    ladderIndex = new int[nodesCount];
+  }
+
+  @Override
+  public void addEdge(int parent, int child) {
+    tree.addEdge(parent, child);
+  }
+
+  @Override
+  public void preprocess(int root) {
+
+    int n = tree.nodesCount;
+    int[] parent = new int[n];
+    int[] order = tree.preorder(root, parent, depth);
+
+    // 1. Heights and long path children (children before parents)
+    int[] height = new int[n];
+    int[] longPathChild = new int[n];
+    for (int i = n - 1; i >= 0; i--) {
+      int node = order[i];
+      height[node] = 1;
+      longPathChild[node] = -1;
+      for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
+        if (height[child] + 1 > height[node]) {
+          height[node] = height[child] + 1;
+          longPathChild[node] = child;
+        }
+      }
+    }
+
+    // 2. Ladders - every long path extended upwards by its own length (but not beyond the root)
+    ladderNodes = new int[2 * n];
+    int size = 0;
+    for (int head : order) {
+      if (head != root && longPathChild[parent[head]] == head) continue;
+
+      int extension = Math.min(height[head], depth[head]);
+      size += extension;
+      int anc = head;
+      for (int k = 1; k <= extension; k++) {
+        anc = parent[anc];
+        ladderNodes[size - k] = anc;
+      }
+      for (int node = head; node != -1; node = longPathChild[node]) {
+        ladderIndex[node] = size;
+        ladderNodes[size++] = node;
+      }
+    }
+
+    // 3. Jump pointers for every node
+    int levels = Math.max(1, 32 - Integer.numberOfLeadingZeros(height[root] - 1));
+    jump = new int[levels][];
+    jump[0] = parent;
+    for (int k = 1; k < levels; k++) {
+      int[] previous = jump[k - 1];
+      int[] current = new int[n];
+      for (int v = 0; v < n; v++) {
+        current[v] = previous[previous[v]];
+      }
+      jump[k] = current;
+    }
+  }
+
+  @Override
+  public int query(int u, int targetDepth) {
+
+    if (depth[u] < targetDepth || targetDepth < 0) return -1;
+    int dist = depth[u] - targetDepth;
+    if (dist == 0) return u;
+
+    // Jump 2^k up, the node there has height > 2^k, so its ladder covers the rest (< 2^k)
+    int k = 31 - Integer.numberOfLeadingZeros(dist);
+    int mid = jump[k][u];
+    return ladderNodes[ladderIndex[mid] - (dist - (1 << k))];
+  }
+}
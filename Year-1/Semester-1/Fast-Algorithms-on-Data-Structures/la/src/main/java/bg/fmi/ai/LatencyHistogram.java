@@ -0,0 +1,71 @@
+package bg.fmi.ai;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram: 8 sub-buckets per power of two, so every value is kept
+ * with a relative error below 12.5%. One writer, any number of readers.
+ */
+final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+  private volatile long max;
+
+  void record(long nanos) {
+
+    nanos = Math.max(0, nanos);
+    counts.incrementAndGet(bucket(nanos));
+    if (nanos > max) max = nanos;
+  }
+
+  long max() {
+    return max;
+  }
+
+  long count() {
+
+    long total = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * The smallest bucket bound below which 'percentile' % of the values are (0 if empty)
+   */
+  long percentile(double percentile) {
+
+    long total = count();
+    if (total == 0) return 0;
+
+    long rank = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= Math.max(1, rank)) return Math.min(max, upperBound(i));
+    }
+    return max;
+  }
+
+  // Values below 8 get their own bucket, bigger ones: [power of two][next 3 bits]
+  private static int bucket(long value) {
+
+    if (value < SUB_BUCKETS) return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBound(int bucket) {
+
+    if (bucket < SUB_BUCKETS) return bucket;
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = bucket % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (1L << exponent) + (subBucket + 1) * width - 1;
+  }
+}
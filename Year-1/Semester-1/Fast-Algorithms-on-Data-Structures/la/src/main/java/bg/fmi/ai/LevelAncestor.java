@@ -0,0 +1,29 @@
+package bg.fmi.ai;
+
+/**
+ * Common API of all Level Ancestor engines:
+ * add the edges, call preprocess(root) once, then ask queries.
+ */
+public interface LevelAncestor {
+
+  void addEdge(int parent, int child);
+
+  void preprocess(int root);
+
+  /**
+   * The ancestor of u at depth targetDepth, or -1 if u is higher than targetDepth or targetDepth is negative
+   */
+  int query(int u, int targetDepth);
+
+  /**
+   * answers[i] = query(nodes[i], targetDepths[i])
+   */
+  default int[] queryAll(int[] nodes, int[] targetDepths) {
+
+    int[] answers = new int[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      answers[i] = query(nodes[i], targetDepths[i]);
+    }
+    return answers;
+  }
+}
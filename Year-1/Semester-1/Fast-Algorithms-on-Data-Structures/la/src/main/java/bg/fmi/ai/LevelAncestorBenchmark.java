@@ -0,0 +1,750 @@
+package bg.fmi.ai;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Simple wall-clock benchmarks (run with: gradle benchmark)
+ * Every measurement is repeated a few times, so the JIT can warm up, and the best run is reported.
+ */
+public class LevelAncestorBenchmark {
+
+  private static final int NODES = 1 << 20;
+  private static final int QUERIES = 1 << 20;
+  private static final int ROUNDS = 5;
+
+  // Keeps the JIT from removing the measured loops
+  private static long blackhole;
+
+  // Sections by name, all of them run when no names are given (gradle benchmark --args="updates")
+  private static final Map<String, Runnable> SECTIONS = new LinkedHashMap<>();
+
+  static {
+    SECTIONS.put("engines", LevelAncestorBenchmark::engines);
+    SECTIONS.put("weighted", LevelAncestorBenchmark::weightedQueries);
+    SECTIONS.put("offline", LevelAncestorBenchmark::offlineBatch);
+    SECTIONS.put("updates", LevelAncestorBenchmark::batchedUpdates);
+    SECTIONS.put("rebuild", LevelAncestorBenchmark::repeatedBuilds);
+    SECTIONS.put("pool", LevelAncestorBenchmark::pooledBuilds);
+    SECTIONS.put("server", LevelAncestorBenchmark::server);
+    SECTIONS.put("bulk", LevelAncestorBenchmark::bulkFile);
+    SECTIONS.put("paths", LevelAncestorBenchmark::ancestorPaths);
+    SECTIONS.put("kth", LevelAncestorBenchmark::kthOnPath);
+    SECTIONS.put("levels", LevelAncestorBenchmark::levelQueries);
+    SECTIONS.put("memory", LevelAncestorBenchmark::memory);
+    SECTIONS.put("sparsity", LevelAncestorBenchmark::sparsity);
+    SECTIONS.put("shared", LevelAncestorBenchmark::sharedMicroMappings);
+  }
+
+  public static void main(String[] args) {
+
+    if (args.length == 0) {
+      SECTIONS.values().forEach(Runnable::run);
+    } else {
+      for (String name : args) {
+        SECTIONS.get(name).run();
+      }
+    }
+
+    System.out.println("(ignore) " + blackhole);
+  }
+
+  // --- Every engine on every tree shape ---
+  private static void engines() {
+
+    for (int n : new int[]{1 << 10, 1 << 16, NODES}) {
+      for (String shape : SHAPES) {
+        int[] parents = shape(shape, n, new Random(n));
+        System.out.printf("== Engines: %s, N = %d, height = %d ==%n", shape, n, height(parents));
+
+        int[] nodes = new int[QUERIES];
+        int[] depths = new int[QUERIES];
+        randomQueries(parents, nodes, depths, new Random(28));
+
+        for (LevelAncestorFactory.Engine engine : LevelAncestorFactory.Engine.values()) {
+          report(engine + " build", n, () -> build(engine.create(n), parents).query(0, 0));
+          LevelAncestor la = build(engine.create(n), parents);
+          report(engine + " query", QUERIES, () -> {
+            long sum = 0;
+            for (int q = 0; q < QUERIES; q++) {
+              sum += la.query(nodes[q], depths[q]);
+            }
+            return sum;
+          });
+        }
+        System.out.println("factory picks " + LevelAncestorFactory.select(parents, 0));
+      }
+    }
+  }
+
+  // --- Weighted level ancestor vs parent walk ---
+  private static void weightedQueries() {
+
+    System.out.println("== Weighted level ancestor ==");
+    Random rand = new Random(42);
+    int[] parents = randomTree(NODES, 1024, rand);
+    LinearLevelAncestor la = build(parents);
+
+    long[] longWeights = new long[NODES];
+    double[] doubleWeights = new double[NODES];
+    for (int i = 1; i < NODES; i++) {
+      longWeights[i] = rand.nextInt(1000);
+      doubleWeights[i] = longWeights[i] / 10.0;
+    }
+    la.preprocessWeights(longWeights);
+    la.preprocessWeights(doubleWeights);
+
+    long[] prefix = new long[NODES];
+    for (int i = 1; i < NODES; i++) {
+      prefix[i] = prefix[parents[i]] + longWeights[i];
+    }
+
+    int[] nodes = new int[QUERIES];
+    long[] limits = new long[QUERIES];
+    for (int q = 0; q < QUERIES; q++) {
+      nodes[q] = rand.nextInt(NODES);
+      limits[q] = prefix[nodes[q]] == 0 ? 0 : rand.nextLong(prefix[nodes[q]]);
+    }
+
+    report("weightedQuery(long)", QUERIES, () -> {
+      long sum = 0;
+      for (int q = 0; q < QUERIES; q++) {
+        sum += la.weightedQuery(nodes[q], limits[q]);
+      }
+      return sum;
+    });
+    report("weightedQuery(double)", QUERIES, () -> {
+      long sum = 0;
+      for (int q = 0; q < QUERIES; q++) {
+        sum += la.weightedQuery(nodes[q], limits[q] / 10.0);
+      }
+      return sum;
+    });
+    report("parent walk", QUERIES, () -> {
+      long sum = 0;
+      for (int q = 0; q < QUERIES; q++) {
+        int u = nodes[q];
+        while (prefix[u] > limits[q]) {
+          u = parents[u];
+        }
+        sum += u;
+      }
+      return sum;
+    });
+  }
+
+  // --- Offline batch answering vs building the online index ---
+  private static void offlineBatch() {
+
+    System.out.println("== Offline batch (build + answer all) ==");
+    Random rand = new Random(27);
+    int[] parents = randomTree(NODES, 1024, rand);
+    int[] nodes = new int[QUERIES];
+    int[] depths = new int[QUERIES];
+    for (int q = 0; q < QUERIES; q++) {
+      nodes[q] = rand.nextInt(NODES);
+      depths[q] = rand.nextInt(64);
+    }
+
+    report("LinearLevelAncestor", QUERIES, () -> {
+      LinearLevelAncestor la = build(parents);
+      return la.queryAll(nodes, depths)[0];
+    });
+    report("OfflineLevelAncestor", QUERIES, () -> {
+      OfflineLevelAncestor offline = new OfflineLevelAncestor(NODES);
+      for (int i = 1; i < NODES; i++) {
+        offline.addEdge(parents[i], i);
+      }
+      offline.preprocess(0);
+      return offline.queryAll(nodes, depths)[0];
+    });
+  }
+
+  // --- Batched cut / link with partial rebuild vs full preprocess ---
+  private static void batchedUpdates() {
+
+    System.out.println("== Batched updates (10 moves per batch) ==");
+    Random rand = new Random(29);
+    int[] parents = randomTree(NODES, 1024, rand);
+    LinearLevelAncestor la = build(parents);
+
+    int batches = 200;
+    report("applyUpdates", batches, () -> {
+      for (int b = 0; b < batches; b++) {
+        for (int m = 0; m < 10; m++) {
+          // parents[i] < i holds after every move, so no cycles are possible
+          int child = 1 + rand.nextInt(NODES - 1);
+          la.cut(child);
+          la.link(rand.nextInt(child), child);
+        }
+        la.applyUpdates();
+      }
+      return la.query(NODES - 1, 0);
+    });
+    report("full preprocess", 1, () -> build(parents).query(NODES - 1, 0));
+  }
+
+  // --- Many builds per second: new instance vs reset + rebuild, with allocated bytes ---
+  private static void repeatedBuilds() {
+
+    int n = 4096;
+    int builds = 2000;
+    System.out.printf("== Repeated builds (N = %d) ==%n", n);
+    int[][] trees = new int[16][];
+    for (int t = 0; t < trees.length; t++) {
+      trees[t] = randomTree(n, 1 + t * 8, new Random(t));
+    }
+
+    reportWithAllocation("new LinearLevelAncestor", builds, () -> {
+      long sum = 0;
+      for (int b = 0; b < builds; b++) {
+        sum += build(trees[b % trees.length]).query(n - 1, 1);
+      }
+      return sum;
+    });
+
+    LinearLevelAncestor la = new LinearLevelAncestor(n);
+    reportWithAllocation("reset + preprocess", builds, () -> {
+      long sum = 0;
+      for (int b = 0; b < builds; b++) {
+        la.reset(n);
+        sum += build(la, trees[b % trees.length]).query(n - 1, 1);
+      }
+      return sum;
+    });
+  }
+
+  // --- Many small request trees: a new instance per tree vs the thread-local pool ---
+  private static void pooledBuilds() {
+
+    for (int n : new int[]{300, 1000, 3000}) {
+      int builds = 20_000_000 / n / 10;
+      System.out.printf("== Pooled builds (N = %d) ==%n", n);
+      int[][] trees = new int[16][];
+      for (int t = 0; t < trees.length; t++) {
+        trees[t] = randomTree(n, 1 + t * 4, new Random(t));
+      }
+
+      reportWithAllocation("new LinearLevelAncestor", builds, () -> {
+        long sum = 0;
+        for (int b = 0; b < builds; b++) {
+          sum += build(trees[b % trees.length]).query(n - 1, 1);
+        }
+        return sum;
+      });
+      reportWithAllocation("LevelAncestorPool", builds, () -> {
+        long sum = 0;
+        for (int b = 0; b < builds; b++) {
+          LinearLevelAncestor la = build(LevelAncestorPool.acquire(n), trees[b % trees.length]);
+          sum += la.query(n - 1, 1);
+          LevelAncestorPool.release(la);
+        }
+        return sum;
+      });
+    }
+  }
+
+  // --- Query server over loopback: many small clients, with and without batching ---
+  private static void server() {
+
+    Random rand = new Random(31);
+    int[] parents = randomTree(NODES, 1024, rand);
+    LinearLevelAncestor la = build(parents);
+    int clients = 1000, frames = 100, frameQueries = 8;
+
+    for (long windowNanos : new long[]{0, 50_000, 200_000}) {
+      try (LevelAncestorServer server = new LevelAncestorServer(la, NODES, windowNanos, 1 << 16);
+           ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        SocketAddress address = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        List<Future<Long>> results = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+          int seed = c;
+          results.add(executor.submit(() -> serverClient(address, frames, frameQueries, new Random(seed))));
+        }
+        for (Future<Long> result : results) {
+          blackhole += result.get();
+        }
+        System.out.printf("== Server: %d clients, batch window %d us ==%n%s%n",
+          clients, windowNanos / 1000, server.stats());
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  private static long serverClient(SocketAddress address, int frames, int frameQueries, Random rand) {
+
+    try (SocketChannel channel = SocketChannel.open(address)) {
+      DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+      DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+      long sum = 0;
+      for (int f = 0; f < frames; f++) {
+        out.writeInt(frameQueries);
+        for (int q = 0; q < frameQueries; q++) {
+          out.writeInt(rand.nextInt(NODES));
+          out.writeInt(rand.nextInt(64));
+        }
+        out.flush();
+        int count = in.readInt();
+        for (int q = 0; q < count; q++) {
+          sum += in.readInt();
+        }
+      }
+      return sum;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // --- Query file: buffered single-thread loop vs mapped fork-join pipeline ---
+  private static void bulkFile() {
+
+    int queries = 16 * QUERIES;
+    System.out.printf("== Bulk query file (%d queries) ==%n", queries);
+    Random rand = new Random(32);
+    int[] parents = randomTree(NODES, 1024, rand);
+    LinearLevelAncestor la = build(parents);
+
+    try {
+      Path input = Files.createTempFile("la-queries", ".bin");
+      Path output = Files.createTempFile("la-answers", ".bin");
+      try {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(input)))) {
+          for (int q = 0; q < queries; q++) {
+            out.writeInt(rand.nextInt(NODES));
+            out.writeInt(rand.nextInt(64));
+          }
+        }
+
+        report("buffered streams, 1 thread", queries, () -> {
+          try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(input)));
+               DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+            for (int q = 0; q < queries; q++) {
+              out.writeInt(la.query(in.readInt(), in.readInt()));
+            }
+          }
+          return Files.size(output);
+        });
+        BulkQueryPipeline pipeline = new BulkQueryPipeline(la, NODES);
+        report("BulkQueryPipeline (" + ForkJoinPool.getCommonPoolParallelism() + " workers)", queries,
+          () -> pipeline.run(input, output));
+      } finally {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // --- Ancestor ranges: Ladder slices vs one query per depth vs parent walk ---
+  private static void ancestorPaths() {
+
+    Random rand = new Random(33);
+    int[] parents = randomTree(NODES, 1024, rand);
+    LinearLevelAncestor la = build(parents);
+    int[] depth = new int[NODES];
+    for (int i = 1; i < NODES; i++) {
+      depth[i] = depth[parents[i]] + 1;
+    }
+
+    for (int range : new int[]{16, 256, 1024}) {
+      System.out.printf("== Ancestor paths of length %d ==%n", range);
+      int ranges = 1 << 14;
+      int[] nodes = new int[ranges];
+      for (int q = 0; q < ranges; q++) {
+        do {
+          nodes[q] = rand.nextInt(NODES);
+        } while (depth[nodes[q]] < range);
+      }
+
+      report("ancestorPath (sum of slices)", ranges, () -> {
+        long sum = 0;
+        for (int u : nodes) {
+          for (IntBuffer slice : la.ancestorPath(u, depth[u] - range, depth[u])) {
+            for (int i = 0; i < slice.limit(); i++) {
+              sum += slice.get(i);
+            }
+          }
+        }
+        return sum;
+      });
+      report("query per depth", ranges, () -> {
+        long sum = 0;
+        for (int u : nodes) {
+          for (int d = depth[u] - range; d <= depth[u]; d++) {
+            sum += la.query(u, d);
+          }
+        }
+        return sum;
+      });
+      report("parent walk", ranges, () -> {
+        long sum = 0;
+        for (int u : nodes) {
+          for (int v = u, d = depth[u]; d >= depth[u] - range; v = parents[v], d--) {
+            sum += v;
+          }
+        }
+        return sum;
+      });
+    }
+  }
+
+  // --- k-th node on a path and rerooted queries vs rebuilding for the new root ---
+  private static void kthOnPath() {
+
+    System.out.println("== k-th node on the path u -> v ==");
+    Random rand = new Random(34);
+    int[] parents = randomTree(NODES, 1024, rand);
+    LinearLevelAncestor la = build(parents);
+
+    int[] from = new int[QUERIES];
+    int[] to = new int[QUERIES];
+    int[] ks = new int[QUERIES];
+    for (int q = 0; q < QUERIES; q++) {
+      from[q] = rand.nextInt(NODES);
+      to[q] = rand.nextInt(NODES);
+      ks[q] = rand.nextInt(la.depth(from[q]) + la.depth(to[q]) + 1);
+    }
+
+    report("lca", QUERIES, () -> {
+      long sum = 0;
+      for (int q = 0; q < QUERIES; q++) {
+        sum += la.lca(from[q], to[q]);
+      }
+      return sum;
+    });
+    report("kthOnPath / queryRerooted", QUERIES, () -> {
+      long sum = 0;
+      for (int q = 0; q < QUERIES; q++) {
+        sum += la.kthOnPath(from[q], to[q], ks[q]);
+      }
+      return sum;
+    });
+    report("rebuild for a new root", 1, () -> {
+      // Reverse the parents on the path from the new root to 0, then a full build
+      int newRoot = rand.nextInt(NODES);
+      int[] rerooted = parents.clone();
+      int previous = -1;
+      for (int v = newRoot; v != 0; v = parents[v]) {
+        rerooted[v] = previous;
+        previous = v;
+      }
+      rerooted[0] = previous;
+      return build(new LinearLevelAncestor(NODES), rerooted, newRoot).query(0, 0);
+    });
+  }
+
+  // --- Level successor and subtree level counts vs a BFS over the subtree ---
+  private static void levelQueries() {
+
+    System.out.println("== Level queries ==");
+    Random rand = new Random(35);
+    int[] parents = shape("random", NODES, rand);
+    LinearLevelAncestor la = build(parents);
+
+    int[] nodes = new int[QUERIES];
+    int[] levels = new int[QUERIES];
+    for (int q = 0; q < QUERIES; q++) {
+      nodes[q] = rand.nextInt(1024); // High nodes with big subtrees
+      levels[q] = la.depth(nodes[q]) + rand.nextInt(8);
+    }
+
+    report("levelSuccessor", QUERIES, () -> {
+      long sum = 0;
+      for (int q = 0; q < QUERIES; q++) {
+        sum += la.levelSuccessor(nodes[q]);
+      }
+      return sum;
+    });
+    report("subtreeLevelCount", QUERIES, () -> {
+      long sum = 0;
+      for (int q = 0; q < QUERIES; q++) {
+        sum += la.subtreeLevelCount(nodes[q], levels[q]);
+      }
+      return sum;
+    });
+
+    // Children lists for the BFS
+    int[] firstChild = new int[NODES];
+    int[] nextSibling = new int[NODES];
+    Arrays.fill(firstChild, -1);
+    for (int i = 1; i < NODES; i++) {
+      nextSibling[i] = firstChild[parents[i]];
+      firstChild[parents[i]] = i;
+    }
+    int[] queue = new int[NODES];
+    int scans = 256;
+    report("BFS over the subtree", scans, () -> {
+      long sum = 0;
+      for (int q = 0; q < scans; q++) {
+        int head = 0, tail = 0, target = levels[q] - la.depth(nodes[q]);
+        queue[tail++] = nodes[q];
+        for (int d = 0; d < target && head < tail; d++) {
+          int end = tail;
+          while (head < end) {
+            for (int child = firstChild[queue[head++]]; child != -1; child = nextSibling[child]) {
+              queue[tail++] = child;
+            }
+          }
+        }
+        sum += tail - head;
+      }
+      return sum;
+    });
+  }
+
+  // --- Retained heap of every engine (measured around a full GC) ---
+  private static void memory() {
+
+    for (String shape : new String[]{"random", "path", "binary"}) {
+      int[] parents = shape(shape, NODES, new Random(36));
+      int[] nodes = new int[QUERIES];
+      int[] depths = new int[QUERIES];
+      randomQueries(parents, nodes, depths, new Random(36));
+      System.out.printf("== Memory: %s, N = %d ==%n", shape, NODES);
+
+      for (LevelAncestorFactory.Engine engine : LevelAncestorFactory.Engine.values()) {
+        long before = usedHeap();
+        LevelAncestor la = build(engine.create(NODES), parents);
+        long bytes = usedHeap() - before;
+        System.out.printf("%-40s %10.1f bits/node%n", engine, bytes * 8.0 / NODES);
+        report(engine + " query", QUERIES, () -> {
+          long sum = 0;
+          for (int q = 0; q < QUERIES; q++) {
+            sum += la.query(nodes[q], depths[q]);
+          }
+          return sum;
+        });
+      }
+    }
+  }
+
+  // --- Memory / latency curve of the sparse jump pointer settings ---
+  private static void sparsity() {
+
+    for (String shape : new String[]{"random", "deep"}) {
+      int[] parents = shape.equals("random") ? randomTree(NODES, 1024, new Random(37)) : shape(shape, NODES, new Random(37));
+      int[] nodes = new int[QUERIES];
+      int[] depths = new int[QUERIES];
+      randomQueries(parents, nodes, depths, new Random(37));
+      System.out.printf("== Sparsity: %s, N = %d (levelShift / jumpNodeScale) ==%n", shape, NODES);
+
+      for (int shift = 0; shift <= 3; shift++) {
+        for (int scale : new int[]{1, 2, 3, 4}) {
+          int levelShift = shift, jumpNodeScale = scale;
+          long before = usedHeap();
+          LinearLevelAncestor la = build(new LinearLevelAncestor(NODES, levelShift, jumpNodeScale), parents);
+          long bytes = usedHeap() - before;
+          String name = String.format("%d / %d", levelShift, jumpNodeScale);
+          System.out.printf("%-40s %10.1f bits/node%n", name, bytes * 8.0 / NODES);
+          report(name + " query", QUERIES, () -> {
+            long sum = 0;
+            for (int q = 0; q < QUERIES; q++) {
+              sum += la.query(nodes[q], depths[q]);
+            }
+            return sum;
+          });
+        }
+      }
+    }
+  }
+
+  // --- Shared Micro-tree mappings: a tree stamped from one template, numbered per copy vs shuffled ids ---
+  private static void sharedMicroMappings() {
+
+    int[] template = randomTree(64, 8, new Random(38));
+    int[] stamped = templateTree(NODES / (template.length + 1), template, new Random(38));
+    int n = stamped.length;
+    int[] permutation = new int[n];
+    for (int i = 0; i < n; i++) {
+      permutation[i] = i;
+    }
+    Random rand = new Random(38);
+    for (int i = n - 1; i > 1; i--) {
+      int j = 1 + rand.nextInt(i); // The root stays 0
+      int swap = permutation[i];
+      permutation[i] = permutation[j];
+      permutation[j] = swap;
+    }
+    int[] shuffled = new int[n];
+    for (int i = 1; i < n; i++) {
+      shuffled[permutation[i]] = permutation[stamped[i]];
+    }
+
+    System.out.printf("== Shared Micro-tree mappings: %d copies of a 64-node template, N = %d ==%n", n / (template.length + 1), n);
+    for (String numbering : new String[]{"per copy", "shuffled"}) {
+      int[] parents = numbering.equals("per copy") ? stamped : shuffled;
+      int[] nodes = new int[QUERIES];
+      int[] depths = new int[QUERIES];
+      randomQueries(parents, nodes, depths, new Random(38));
+
+      for (boolean shared : new boolean[]{false, true}) {
+        String name = numbering + (shared ? ", shared" : ", not shared");
+        long before = usedHeap();
+        LinearLevelAncestor la = build(new LinearLevelAncestor(n, 0, 1, shared), parents);
+        long bytes = usedHeap() - before;
+        System.out.printf("%-40s %10.1f bits/node, %d distinct micro mappings%n", name, bytes * 8.0 / n,
+          la.distinctMicroMappings());
+        report(name + " preprocess", n, () -> build(new LinearLevelAncestor(n, 0, 1, shared), parents).depth(0));
+        report(name + " query", QUERIES, () -> {
+          long sum = 0;
+          for (int q = 0; q < QUERIES; q++) {
+            sum += la.query(nodes[q], depths[q]);
+          }
+          return sum;
+        });
+      }
+    }
+  }
+
+  private static long usedHeap() {
+
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  // --- Helpers ---
+
+  interface Measured {
+    long run() throws IOException;
+  }
+
+  static void report(String name, int operations, Measured measured) {
+
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      try {
+        blackhole += measured.run();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    System.out.printf("%-40s %10.1f ns/op%n", name, (double) best / operations);
+  }
+
+  static void reportWithAllocation(String name, int operations, Measured measured) {
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long before = threads.getCurrentThreadAllocatedBytes();
+    report(name, operations, measured);
+    long bytes = threads.getCurrentThreadAllocatedBytes() - before;
+    System.out.printf("%-40s %10.1f KB/op%n", "", bytes / 1024.0 / operations / ROUNDS);
+  }
+
+  static LinearLevelAncestor build(int[] parents) {
+    return build(new LinearLevelAncestor(parents.length), parents);
+  }
+
+  static <T extends LevelAncestor> T build(T la, int[] parents) {
+    return build(la, parents, 0);
+  }
+
+  static <T extends LevelAncestor> T build(T la, int[] parents, int root) {
+
+    for (int i = 0; i < parents.length; i++) {
+      if (i != root) la.addEdge(parents[i], i);
+    }
+    la.preprocess(root);
+    return la;
+  }
+
+  static final String[] SHAPES = {"random", "shallow", "deep", "path", "star", "broom", "binary"};
+
+  // Every shape uses node 0 as the root and parents[i] < i
+  static int[] shape(String name, int n, Random rand) {
+
+    int[] parents = new int[n];
+    for (int i = 1; i < n; i++) {
+      parents[i] = switch (name) {
+        case "random" -> rand.nextInt(i);
+        case "shallow" -> rand.nextInt(Math.min(i, 16));
+        case "deep" -> Math.max(0, i - 1 - rand.nextInt(4));
+        case "path" -> i - 1;
+        case "star" -> 0;
+        case "broom" -> i < n / 2 ? i - 1 : n / 2 - 1;
+        case "binary" -> (i - 1) / 2;
+        default -> throw new IllegalArgumentException("Unknown shape " + name);
+      };
+    }
+    return parents;
+  }
+
+  static int height(int[] parents) {
+
+    int[] depth = new int[parents.length];
+    int max = 0;
+    for (int i = 1; i < parents.length; i++) {
+      depth[i] = depth[parents[i]] + 1;
+      max = Math.max(max, depth[i]);
+    }
+    return max + 1;
+  }
+
+  static void randomQueries(int[] parents, int[] nodes, int[] depths, Random rand) {
+
+    int[] depth = new int[parents.length];
+    for (int i = 1; i < parents.length; i++) {
+      depth[i] = depth[parents[i]] + 1;
+    }
+    for (int q = 0; q < nodes.length; q++) {
+      nodes[q] = rand.nextInt(parents.length);
+      depths[q] = rand.nextInt(depth[nodes[q]] + 1);
+    }
+  }
+
+  // Parent is chosen among the last 'window' nodes, the expected height is about 2n / window
+  static int[] randomTree(int n, int window, Random rand) {
+
+    int[] parents = new int[n];
+    for (int i = 1; i < n; i++) {
+      parents[i] = Math.max(0, i - 1 - rand.nextInt(window));
+    }
+    return parents;
+  }
+
+  // A random backbone of 'copies' nodes (ids 0..copies-1), every backbone node gets a copy of 'template'
+  // whose ids are consecutive and in the template's order
+  static int[] templateTree(int copies, int[] template, Random rand) {
+
+    int size = template.length;
+    int[] parents = Arrays.copyOf(randomTree(copies, 32, rand), copies * (size + 1));
+    for (int copy = 0; copy < copies; copy++) {
+      int base = copies + copy * size;
+      parents[base] = copy;
+      for (int i = 1; i < size; i++) {
+        parents[base + i] = base + template[i];
+      }
+    }
+    return parents;
+  }
+}
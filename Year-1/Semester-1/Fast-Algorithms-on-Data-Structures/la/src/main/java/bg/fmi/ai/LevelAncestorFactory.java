@@ -0,0 +1,92 @@
+package bg.fmi.ai;
+
+import java.util.function.IntFunction;
+
+/**
+ * Picks the fastest Level Ancestor engine for the shape of a given tree.
+ * The thresholds come from LevelAncestorBenchmark (gradle benchmark).
+ */
+public final class LevelAncestorFactory {
+
+  public enum Engine {
+    // Macro-Micro index - O(N) space, O(1) query
+    LINEAR(LinearLevelAncestor::new),
+    // O(N log H) space, O(log H) query
+    BINARY_LIFTING(BinaryLiftingLevelAncestor::new),
+    // O(N log H) space, O(1) query
+    JUMP_LADDER(JumpLadderLevelAncestor::new),
+    // O(N) space, O(log N) query
+    SKEW_BINARY(SkewBinaryLevelAncestor::new),
+    // About 2N bits, O(log N) query - never picked by select, for trees that do not fit in memory otherwise
+    SUCCINCT(SuccinctLevelAncestor::new);
+
+    private final IntFunction<LevelAncestor> constructor;
+
+    Engine(IntFunction<LevelAncestor> constructor) {
+      this.constructor = constructor;
+    }
+
+    public LevelAncestor create(int nodesCount) {
+      return constructor.apply(nodesCount);
+    }
+  }
+
+  private LevelAncestorFactory() {
+  }
+
+  /**
+   * Chooses the engine from the size and the height of the tree
+   * (the branching factor did not separate the engines in the benchmarks)
+   */
+  public static Engine select(int nodesCount, int height) {
+
+    // Star-like trees: every answer is the node or its parent
+    if (height <= 2) return Engine.SKEW_BINARY;
+
+    // Shallow trees: a handful of lifting levels beat every O(1) scheme
+    if (height <= 64) return Engine.BINARY_LIFTING;
+
+    // Huge path-like trees: the Macro-Micro index is both smaller and faster (fewer cache misses)
+    if (nodesCount >= (1 << 18) && height >= nodesCount / 2) return Engine.LINEAR;
+
+    return Engine.JUMP_LADDER;
+  }
+
+  /**
+   * Chooses the engine for the tree given with parents[v] (parents[root] is ignored)
+   */
+  public static Engine select(int[] parents, int root) {
+
+    int n = parents.length;
+    int[] depth = new int[n];
+    toTree(parents, root).preorder(root, new int[n], depth);
+
+    int height = 0;
+    for (int d : depth) {
+      height = Math.max(height, d + 1);
+    }
+    return select(n, height);
+  }
+
+  /**
+   * Builds and preprocesses the engine chosen for the tree given with parents[v]
+   */
+  public static LevelAncestor build(int[] parents, int root) {
+
+    LevelAncestor la = select(parents, root).create(parents.length);
+    for (int v = 0; v < parents.length; v++) {
+      if (v != root) la.addEdge(parents[v], v);
+    }
+    la.preprocess(root);
+    return la;
+  }
+
+  private static RootedTree toTree(int[] parents, int root) {
+
+    RootedTree tree = new RootedTree(parents.length);
+    for (int v = 0; v < parents.length; v++) {
+      if (v != root) tree.addEdge(parents[v], v);
+    }
+    return tree;
+  }
+}
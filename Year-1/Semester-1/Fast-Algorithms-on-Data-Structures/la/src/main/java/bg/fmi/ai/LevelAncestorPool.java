@@ -0,0 +1,65 @@
+package bg.fmi.ai;
+
+import java.util.ArrayDeque;
+
+/**
+ * Thread-local pool of LinearLevelAncestor instances for services that build many small trees.
+ * <p>
+ * The instances are grouped by capacity (powers of two). acquire resets an idle instance of the
+ * smallest sufficient capacity for the new tree, so its per-node arrays are reused instead of
+ * allocated again; release hands it back to the pool of the calling thread.
+ * An instance must not be used after it is released.
+ */
+public final class LevelAncestorPool {
+
+  private static final int MAX_IDLE_PER_CAPACITY = 4;
+
+  // [log2(capacity)] -> idle instances of the current thread
+  private static final ThreadLocal<IdleInstances[]> IDLE = ThreadLocal.withInitial(() -> new IdleInstances[32]);
+
+  private LevelAncestorPool() {
+  }
+
+  /**
+   * A LinearLevelAncestor for 'nodesCount' nodes without edges, ready for addEdge and preprocess
+   */
+  public static LinearLevelAncestor acquire(int nodesCount) {
+
+    if (nodesCount < 1) throw new IllegalArgumentException("nodesCount must be positive");
+    int capacityLog = 32 - Integer.numberOfLeadingZeros(nodesCount - 1);
+    IdleInstances idle = IDLE.get()[capacityLog];
+    LinearLevelAncestor la = idle == null ? null : idle.poll();
+    if (la == null) {
+      la = new LinearLevelAncestor(1 << capacityLog);
+    }
+    la.released = false;
+    la.reset(nodesCount);
+    return la;
+  }
+
+  /**
+   * Returns 'la' to the pool of the current thread. It is dropped if that pool is already full or if 'la' was
+   * created with non-default options (sparse jump pointers, scaled Jump nodes or shared Micro mappings).
+   *
+   * @throws IllegalStateException if 'la' is already released
+   */
+  public static void release(LinearLevelAncestor la) {
+
+    if (la.released) throw new IllegalStateException("The instance is already released");
+    la.released = true;
+    if (!la.hasDefaultConfig()) return;
+
+    // Any instance serves the trees up to the power of two below its capacity
+    int capacityLog = 31 - Integer.numberOfLeadingZeros(Math.max(1, la.capacity()));
+    IdleInstances[] pools = IDLE.get();
+    if (pools[capacityLog] == null) {
+      pools[capacityLog] = new IdleInstances();
+    }
+    if (pools[capacityLog].size() < MAX_IDLE_PER_CAPACITY) {
+      pools[capacityLog].push(la);
+    }
+  }
+
+  private static final class IdleInstances extends ArrayDeque<LinearLevelAncestor> {
+  }
+}
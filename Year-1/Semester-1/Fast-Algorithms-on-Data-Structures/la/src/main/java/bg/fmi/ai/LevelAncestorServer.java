@@ -0,0 +1,292 @@
+package bg.fmi.ai;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local query server over one shared, already preprocessed index.
+ * <p>
+ * Every connection is served by its own virtual thread. Requests that arrive within the batch window
+ * are merged and answered together by a single batcher thread with one queryAll call.
+ * <p>
+ * Protocol (big-endian ints), any number of frames per connection:
+ * request  = count, then count pairs (node, targetDepth)
+ * response = count, then count answers (-1 if the node is higher than targetDepth or targetDepth is negative);
+ * a response count of -1 reports an invalid request (or a server shutting down) and the connection is closed.
+ */
+public class LevelAncestorServer implements AutoCloseable {
+
+  public static final int MAX_FRAME_QUERIES = 1 << 20;
+  private static final int BACKLOG = 4096;
+
+  private final LevelAncestor index;
+  private final int nodesCount;
+  private final long batchWindowNanos;
+  private final int maxBatchQueries;
+
+  private final BlockingQueue<PendingRequest> queue = new LinkedBlockingQueue<>();
+  private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+  private ServerSocketChannel serverChannel;
+  private Thread batcher;
+  private volatile boolean running;
+
+  // Statistics
+  private final LatencyHistogram latency = new LatencyHistogram();
+  private final AtomicLong answeredQueries = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private long startNanos;
+
+  public LevelAncestorServer(LevelAncestor index, int nodesCount, long batchWindowNanos, int maxBatchQueries) {
+    this.index = index;
+    this.nodesCount = nodesCount;
+    this.batchWindowNanos = batchWindowNanos;
+    this.maxBatchQueries = maxBatchQueries;
+  }
+
+  /**
+   * Binds to a loopback InetSocketAddress or a UnixDomainSocketAddress and starts serving.
+   * Returns the bound address (useful for port 0).
+   */
+  public SocketAddress start(SocketAddress address) throws IOException {
+
+    serverChannel = address instanceof UnixDomainSocketAddress
+      ? ServerSocketChannel.open(StandardProtocolFamily.UNIX)
+      : ServerSocketChannel.open();
+    serverChannel.bind(address, BACKLOG);
+
+    running = true;
+    startNanos = System.nanoTime();
+    batcher = Thread.ofPlatform().name("la-batcher").daemon().start(this::batchLoop);
+    Thread.ofVirtual().name("la-acceptor").start(this::acceptLoop);
+    return serverChannel.getLocalAddress();
+  }
+
+  public Stats stats() {
+
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+    long queries = answeredQueries.get();
+    return new Stats(queries, batches.get(), queries / seconds,
+      latency.percentile(50), latency.percentile(99), latency.percentile(99.9), latency.max());
+  }
+
+  /**
+   * Throughput and request latency (from the decoded request to the answers being ready)
+   */
+  public record Stats(long queries, long batches, double queriesPerSecond,
+                      long p50Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+
+    @Override
+    public String toString() {
+      return String.format("%d queries in %d batches, %.0f queries/s, latency p50 %.1f us, p99 %.1f us, "
+          + "p99.9 %.1f us, max %.1f us", queries, batches, queriesPerSecond,
+        p50Nanos / 1e3, p99Nanos / 1e3, p999Nanos / 1e3, maxNanos / 1e3);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+
+    running = false;
+    SocketAddress address = serverChannel.getLocalAddress();
+    serverChannel.close();
+    for (SocketChannel connection : connections) {
+      connection.close();
+    }
+    batcher.interrupt();
+    failPending();
+    if (address instanceof UnixDomainSocketAddress unix) {
+      Files.deleteIfExists(unix.getPath());
+    }
+  }
+
+  // Completes the requests nobody is going to answer, so their connection threads do not wait forever
+  private void failPending() {
+
+    IllegalStateException stopped = new IllegalStateException("The server is closed");
+    for (PendingRequest request; (request = queue.poll()) != null; ) {
+      request.answers.completeExceptionally(stopped);
+    }
+  }
+
+  // Number of connections whose threads are still running
+  int activeConnections() {
+    return connections.size();
+  }
+
+  private void acceptLoop() {
+
+    while (running) {
+      try {
+        SocketChannel connection = serverChannel.accept();
+        connections.add(connection);
+        Thread.ofVirtual().name("la-connection").start(() -> serve(connection));
+      } catch (IOException e) {
+        // The server channel was closed
+        return;
+      }
+    }
+  }
+
+  private void serve(SocketChannel connection) {
+
+    try (connection) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection)));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection)));
+
+      while (running) {
+        int count;
+        try {
+          count = in.readInt();
+        } catch (EOFException e) {
+          return; // Client closed the connection
+        }
+
+        if (count < 0 || count > MAX_FRAME_QUERIES) {
+          out.writeInt(-1);
+          out.flush();
+          return;
+        }
+
+        int[] nodes = new int[count];
+        int[] depths = new int[count];
+        boolean valid = true;
+        for (int i = 0; i < count; i++) {
+          nodes[i] = in.readInt();
+          depths[i] = in.readInt();
+          valid &= nodes[i] >= 0 && nodes[i] < nodesCount;
+        }
+        if (!valid) {
+          out.writeInt(-1);
+          out.flush();
+          return;
+        }
+
+        // Negative depths need no check, every engine answers them with -1
+        PendingRequest request = new PendingRequest(nodes, depths, System.nanoTime());
+        queue.put(request);
+        if (!running) failPending(); // close may have drained the queue before the put
+        int[] answers;
+        try {
+          answers = request.answers.join();
+        } catch (CompletionException e) {
+          out.writeInt(-1);
+          out.flush();
+          return;
+        }
+
+        out.writeInt(count);
+        for (int answer : answers) {
+          out.writeInt(answer);
+        }
+        out.flush();
+      }
+    } catch (IOException | InterruptedException e) {
+      // Connection closed or server shutting down
+    } finally {
+      connections.remove(connection);
+    }
+  }
+
+  // Collects the requests of one batch window and answers them with a single queryAll call
+  private void batchLoop() {
+
+    List<PendingRequest> batch = new ArrayList<>();
+
+    while (running) {
+      try {
+        PendingRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) continue;
+
+        batch.add(first);
+        int size = first.nodes.length;
+        long deadline = System.nanoTime() + batchWindowNanos;
+        while (size < maxBatchQueries) {
+          PendingRequest next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) break;
+          batch.add(next);
+          size += next.nodes.length;
+        }
+
+        // Merge
+        int[] nodes = new int[size];
+        int[] depths = new int[size];
+        int offset = 0;
+        for (PendingRequest request : batch) {
+          System.arraycopy(request.nodes, 0, nodes, offset, request.nodes.length);
+          System.arraycopy(request.depths, 0, depths, offset, request.depths.length);
+          offset += request.nodes.length;
+        }
+
+        int[] answers = index.queryAll(nodes, depths);
+
+        answeredQueries.addAndGet(size);
+        batches.incrementAndGet();
+
+        // Split
+        offset = 0;
+        long now = System.nanoTime();
+        for (PendingRequest request : batch) {
+          int count = request.nodes.length;
+          latency.record(now - request.receivedNanos);
+          request.answers.complete(Arrays.copyOfRange(answers, offset, offset + count));
+          offset += count;
+        }
+        batch.clear();
+      } catch (InterruptedException e) {
+        // close() fails the queued requests, the ones taken already are failed here
+        IllegalStateException stopped = new IllegalStateException("The server is closed");
+        for (PendingRequest request : batch) {
+          request.answers.completeExceptionally(stopped);
+        }
+        return;
+      } catch (RuntimeException e) {
+        // Answer the requests one by one, so only the ones that fail themselves are rejected
+        for (PendingRequest request : batch) {
+          answerAlone(request);
+        }
+        batch.clear();
+      }
+    }
+  }
+
+  private void answerAlone(PendingRequest request) {
+
+    try {
+      int[] answers = index.queryAll(request.nodes, request.depths);
+      answeredQueries.addAndGet(request.nodes.length);
+      latency.record(System.nanoTime() - request.receivedNanos);
+      request.answers.complete(answers);
+    } catch (RuntimeException e) {
+      request.answers.completeExceptionally(e);
+    }
+  }
+
+  private record PendingRequest(int[] nodes, int[] depths, long receivedNanos, CompletableFuture<int[]> answers) {
+
+    PendingRequest(int[] nodes, int[] depths, long receivedNanos) {
+      this(nodes, depths, receivedNanos, new CompletableFuture<>());
+    }
+  }
+}
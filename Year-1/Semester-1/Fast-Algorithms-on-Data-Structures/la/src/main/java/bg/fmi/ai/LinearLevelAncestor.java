@@ -1,70 +1,182 @@
 package bg.fmi.ai;
 
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.function.IntPredicate;
 
-public class LinearLevelAncestor {
+public class LinearLevelAncestor implements LevelAncestor {
 
   // Nodes structure and data
-  private final int nodesCount;
-  private final List<List<Integer>> adjacencyList;
-  private final int[] depth, parent, height;
+  private int nodesCount;
+  private final RootedTree tree;
+  private int[] depth, parent, height;
+  private int[] successorsPerNode;
+  private int root;
+
+  // Levels: the nodes of every depth in DFS order, levelOrder[levelStart[d] .. levelStart[d + 1])
+  // A subtree is the DFS interval [dfsEntry[u], dfsEntry[u] + successorsPerNode[u] - 1]
+  // Built by preprocess and rebuildLevels, never by the (read-only) level queries
+  private int[] dfsEntry, levelOrder, levelRank, levelStart;
+  // Set by applyUpdates (and reset), the level queries refuse to answer until the levels are rebuilt
+  private boolean levelsStale;
 
   // Ladder
-  private final int[] longPathChild;
+  private int[] longPathChild;
   private final List<int[]> ladders;
-  private final int[] ladderId, ladderPos;
+  private int[] ladderId, ladderPos;
 
   // Macro-Micro
-  private final boolean[] isJumpNode;
-  private final List<Integer> jumpNodesList;
+  private boolean[] isJumpNode;
   // Used to find the Jump node for a given Macro node
-  private final int[] jumpNodeDescendant;
-  private final int[][] jumpPointers;
-  private final int logN;
-  private final int microBlockSize; // B = logN / 4
+  private int[] jumpNodeDescendant;
+  private int[][] jumpPointers;
+  private int logN;
+  private int microBlockSize; // B = logN / 4
+
+  // Sparsity: pointers only for the jump lengths 2^(i * 2^pointerLevelShift), pointerLevels of them per Jump node,
+  // and Jump nodes (and Micro-trees) chosen with B * jumpNodeScale instead of B
+  // A Micro-tree has at most B - 1 nodes, so its shape bitmask has 1 + 2 * (B - 2) = 2B - 3 bits, which must fit
+  // a positive int key: B <= 17. Its table has (B - 1) * B ints, and there is at most one table per Micro-tree.
+  private static final int MAX_MICRO_BLOCK_SIZE = 17;
+  private final int pointerLevelShift;
+  private final int jumpNodeScale;
+  private int pointerLevels;
 
   // Micro-Tree
-  private final int[] microRoot;
+  private int[] microRoot;
   // Node index inside micro-tree
-  private final int[] microDfsRank;
-  // Map: [microId][localIndex] -> globalNodeId
-  private final int[][] microToGlobal;
-  private final int[] globalToLocalBuffer;
+  private int[] microDfsRank;
+  // Map: [microRoot][localIndex] -> globalNodeId - microRoot
+  private int[][] microOffsets;
+  // Optional sharing of the offset arrays: Micro-trees numbered the same way relative to their root
+  // (e.g. stamped from one template) share a single array, addressed from their own root.
+  // Isomorphic Micro-trees with any other numbering, the ladders and the jump pointers are not shared
+  private final boolean shareMicroMappings;
+  // Set by LevelAncestorPool.release, cleared by acquire
+  boolean released;
+  // Open addressing set of the shared offset arrays (null if they are not shared), cleared by preprocess
+  private int[][] offsetTable;
+  private int offsetCount;
+  private int[] globalToLocalBuffer;
   // Contains only the unique shapes
   // Since the block is small, the possible shapes are very few
+  // The tables depend only on the shape, so they are kept across reset
   private final List<int[][]> shapesLibrary;
+  // Open addressing map: shape bitmask -> index in shapesLibrary (key 0 = free slot, bitmasks start with 1)
+  // Sized by the shapes actually seen, not by the 2^(2B) possible bitmasks
+  private int[] shapeKeys;
+  private int[] shapeIds;
   // The serial number of the shape
-  private final  int[] microShapeId;
+  private int[] microShapeId;
   private int currentShapeMask;
 
+  // Scratch buffers reused by every phase: the current long path or the nodes of the current micro-tree
+  private int[] pathBuffer;
+  private int pathSize;
+  private int[] localParentBuffer;
+
+  // Batched structural updates: pending moves {child, newParent}, newParent == -1 for a cut without a link yet
+  private final List<int[]> pendingMoves;
+  // Ladder slots released by updates, reused by the next rebuilt ladders
+  private final List<Integer> freeLadderIds;
+  // Reusable marks, a node (or ladder) is marked if its value equals the current stamp
+  private int[] updateMark, changedMark, ladderMark;
+  private int updateStamp;
+
+  // Weighted depths (sum of edge weights from the root), filled by preprocessWeights
+  private long[] longWeightedDepth;
+  private double[] doubleWeightedDepth;
+
   public LinearLevelAncestor(int nodesCount) {
+    this(nodesCount, 0, 1);
+  }
 
-    this.nodesCount = nodesCount;
-    this.adjacencyList = new ArrayList<>(nodesCount);
-    for (int i = 0; i < nodesCount; i++) {
-      adjacencyList.add(new ArrayList<>());
-    }
-    depth = new int[nodesCount];
-    parent = new int[nodesCount];
-    height = new int[nodesCount];
-    longPathChild = new int[nodesCount];
-    Arrays.fill(longPathChild, -1);
-    ladderId = new int[nodesCount];
-    ladderPos = new int[nodesCount];
+  /**
+   * Sparse variant - trades query time for memory:
+   * pointerLevelShift = j (0..4) keeps the jump pointers of every 2^j-th level only (2^j times fewer pointers),
+   * which costs up to 2^j - 1 extra Ladder hops per query: 1 for j = 1, 3 for j = 2, up to 15 for j = 4;
+   * jumpNodeScale = c selects Jump nodes by c * B descendants, so there are about c times fewer of them,
+   * but the Micro-trees (and their shape tables) grow up to c * B nodes. c * B is capped at 17 (the shape
+   * bitmask must fit an int), so for N >= 2^20 (B = 5) only c = 2, 3 and 4 give different configurations.
+   */
+  public LinearLevelAncestor(int nodesCount, int pointerLevelShift, int jumpNodeScale) {
+    this(nodesCount, pointerLevelShift, jumpNodeScale, false);
+  }
+
+  /**
+   * shareMicroMappings = true keeps one mapping array for all Micro-trees whose node ids have the same offsets
+   * from their roots. This is not deduplication of isomorphic subtrees: copies numbered any other way, the ladders
+   * and the jump pointers are stored once per node as usual. It saves about 8% of memory on consistently
+   * numbered copies of a template and costs a hash lookup per Micro-tree in preprocess, so it is off by default.
+   */
+  public LinearLevelAncestor(int nodesCount, int pointerLevelShift, int jumpNodeScale, boolean shareMicroMappings) {
+
+    if (pointerLevelShift < 0 || pointerLevelShift > 4) {
+      throw new IllegalArgumentException("pointerLevelShift must be in [0, 4]");
+    }
+    if (jumpNodeScale < 1) throw new IllegalArgumentException("jumpNodeScale must be positive");
+    this.pointerLevelShift = pointerLevelShift;
+    this.jumpNodeScale = jumpNodeScale;
+    this.shareMicroMappings = shareMicroMappings;
+
+    tree = new RootedTree(nodesCount);
     ladders = new ArrayList<>();
+    shapesLibrary = new ArrayList<>();
+    shapeKeys = new int[16];
+    shapeIds = new int[16];
+    if (shareMicroMappings) offsetTable = new int[16][];
+    pendingMoves = new ArrayList<>();
+    freeLadderIds = new ArrayList<>();
+    reset(nodesCount);
+  }
 
-    isJumpNode = new boolean[nodesCount];
-    jumpNodesList = new ArrayList<>();
+  /**
+   * Prepares the instance for a new tree with 'nodesCount' nodes (edges have to be added again).
+   * The per-node arrays are reused when they are big enough, so repeated builds allocate
+   * only the final index arrays (ladders, jump pointers, micro-tree mappings).
+   * See LevelAncestorPool for reusing instances across requests.
+   */
+  public void reset(int nodesCount) {
 
-    jumpNodeDescendant = new int[nodesCount];
-    Arrays.fill(jumpNodeDescendant, -1);
-    microRoot = new int[nodesCount];
-    Arrays.fill(microRoot, -1);
-    microDfsRank = new int[nodesCount];
+    this.nodesCount = nodesCount;
+    tree.reset(nodesCount);
+
+    if (depth == null || depth.length < nodesCount) {
+      depth = new int[nodesCount];
+      parent = new int[nodesCount];
+      height = new int[nodesCount];
+      successorsPerNode = new int[nodesCount];
+      longPathChild = new int[nodesCount];
+      ladderId = new int[nodesCount];
+      ladderPos = new int[nodesCount];
+      isJumpNode = new boolean[nodesCount];
+      jumpNodeDescendant = new int[nodesCount];
+      jumpPointers = new int[nodesCount][];
+      microRoot = new int[nodesCount];
+      microDfsRank = new int[nodesCount];
+      microOffsets = new int[nodesCount][];
+      globalToLocalBuffer = new int[nodesCount];
+      Arrays.fill(globalToLocalBuffer, -1);
+      microShapeId = new int[nodesCount];
+      pathBuffer = new int[nodesCount];
+      dfsEntry = new int[nodesCount];
+      levelOrder = new int[nodesCount];
+      levelRank = new int[nodesCount];
+      updateMark = null;
+    }
+    Arrays.fill(longPathChild, 0, nodesCount, -1);
+    Arrays.fill(isJumpNode, 0, nodesCount, false);
+    Arrays.fill(jumpNodeDescendant, 0, nodesCount, -1);
+    Arrays.fill(microRoot, 0, nodesCount, -1);
+    ladders.clear();
+    pendingMoves.clear();
+    freeLadderIds.clear();
+    longWeightedDepth = null;
+    doubleWeightedDepth = null;
+    levelsStale = true;
 
     // Determining the block size according to the article (log N / 4)
     // log2N + 1 (because for 2^4 we need size of 5 0,1,2,3,4)
@@ -75,35 +187,54 @@ public class LinearLevelAncestor {
     }
     // TODO: When n is small number there aren't any micro nodes, manual change for testing purposes if needed
     microBlockSize = Math.max(1, logN / 4); // B
+    if (jumpNodeScale > 1) {
+      microBlockSize = Math.min(MAX_MICRO_BLOCK_SIZE, microBlockSize * jumpNodeScale);
+    }
+    // Jump lengths 2^0, 2^(2^j), 2^(2 * 2^j), ... below 2^logN
+    pointerLevels = ((logN - 1) >>> pointerLevelShift) + 1;
 
-    jumpPointers = new int[nodesCount][];
-    globalToLocalBuffer = new int[nodesCount];
-    Arrays.fill(globalToLocalBuffer, -1);
-    shapesLibrary = new ArrayList<>();
-    microShapeId = new int[nodesCount];
-    microToGlobal = new int[nodesCount][];
+    if (localParentBuffer == null || localParentBuffer.length < microBlockSize) {
+      localParentBuffer = new int[microBlockSize];
+    }
+  }
+
+  // The largest tree reset can take without allocating the per-node arrays again
+  int capacity() {
+    return depth.length;
+  }
+
+  // Only instances built by the 1-argument constructor are interchangeable in LevelAncestorPool
+  boolean hasDefaultConfig() {
+    return pointerLevelShift == 0 && jumpNodeScale == 1 && !shareMicroMappings;
   }
 
+  @Override
   public void addEdge(int parent, int child) {
-    adjacencyList.get(parent).add(child);
+    tree.addEdge(parent, child);
   }
 
   /**
    * Main preprocessing method - O(N)
    */
+  @Override
   public void preprocess(int root) {
 
+    this.root = root;
     parent[root] = root; // Safety check
+    if (shareMicroMappings) {
+      Arrays.fill(offsetTable, null);
+      offsetCount = 0;
+    }
 
     // 1. Initial Analysis: Heights, Subtree Sizes, Ladders
     // This corresponds to the standard part of Lemma 7
-    int[] successorsPerNode = new int[nodesCount];
-    dfsBasic(root, 0, successorsPerNode);
+    dfsBasic(root, 0);
+    buildLevels();
     buildLadders(root);
 
     // 2. Identify Jump Nodes and Macro/Micro decomposition
     // According to Section 4.1: "maximally deep vertices having at least log n/4 descendants"
-    identifyJumpNodes(root, successorsPerNode);
+    identifyJumpNodes(root);
 
     // 3. Compute Jump Pointers only for Jump Nodes - O(N) total
     // According to Lemma 10
@@ -118,17 +249,17 @@ public class LinearLevelAncestor {
     processMicroTrees(root);
   }
 
-  private void dfsBasic(int node, int depth, int[] successorsPerNode) {
+  private void dfsBasic(int node, int depth) {
 
     this.depth[node] = depth;
     height[node] = 1;
     successorsPerNode[node] = 1;
     int maxH = -1;
 
-    for (int child : adjacencyList.get(node)) {
+    for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
       if (child == parent[node]) continue; // TODO: Do we need that check?
       parent[child] = node;
-      dfsBasic(child, depth + 1, successorsPerNode);
+      dfsBasic(child, depth + 1);
       successorsPerNode[node] += successorsPerNode[child];
 
       if (height[child] > maxH) {
@@ -139,55 +270,104 @@ public class LinearLevelAncestor {
     }
   }
 
-  private void buildLadders(int root) {
+  // Levels from depth[] and successorsPerNode[] only, without another DFS - O(N)
+  private void buildLevels() {
+
+    int levels = height[root];
+    if (levelStart == null || levelStart.length < levels + 1) {
+      levelStart = new int[levels + 1];
+    }
+    Arrays.fill(levelStart, 0, levels + 1, 0);
+
+    // 1. Counting sort by depth (any order inside a level) - parents come before their children
+    for (int node = 0; node < nodesCount; node++) {
+      levelStart[depth[node] + 1]++;
+    }
+    for (int d = 0; d < levels; d++) {
+      levelStart[d + 1] += levelStart[d];
+    }
+    for (int node = 0; node < nodesCount; node++) {
+      levelOrder[levelStart[depth[node]]++] = node;
+    }
+    // The increments above shifted every start to the next level
+    System.arraycopy(levelStart, 0, levelStart, 1, levels);
+    levelStart[0] = 0;
+
+    // 2. DFS entry times top-down: the children of a node follow it, each after the subtrees of the previous ones
+    dfsEntry[root] = 0;
+    for (int i = 0; i < nodesCount; i++) {
+      int node = levelOrder[i];
+      int next = dfsEntry[node] + 1;
+      for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
+        dfsEntry[child] = next;
+        next += successorsPerNode[child];
+      }
+    }
+
+    // 3. Counting sort by depth again, this time going through the nodes in preorder
+    for (int node = 0; node < nodesCount; node++) {
+      pathBuffer[dfsEntry[node]] = node;
+    }
+    for (int i = 0; i < nodesCount; i++) {
+      int node = pathBuffer[i];
+      levelRank[node] = levelStart[depth[node]]++;
+      levelOrder[levelRank[node]] = node;
+    }
+    System.arraycopy(levelStart, 0, levelStart, 1, levels);
+    levelStart[0] = 0;
+    levelsStale = false;
+  }
 
-    int id = 0;
+  private void buildLadders(int root) {
 
     for (int i = 0; i < nodesCount; i++) {
       boolean isHead = (i == root) || (longPathChild[parent[i]] != i);
       if (isHead) {
-        List<Integer> path = new ArrayList<>();
-        int current = i;
-        while (current != -1) {
-          path.add(current);
-          current = longPathChild[current];
-        }
+        ladders.add(buildLadder(i, ladders.size()));
+      }
+    }
+  }
 
-        int length = path.size();
-        int[] ladder = new int[length * 2];
+  // The long path starting at 'head' extended upwards by its length
+  private int[] buildLadder(int head, int id) {
 
-        // Ancestors
-        int anc = parent[path.getFirst()];
-        for (int k = 0; k < length; k++) {
-          ladder[length - 1 - k] = anc;
-          anc = parent[anc];
-        }
+    pathSize = 0;
+    int current = head;
+    while (current != -1) {
+      pathBuffer[pathSize++] = current;
+      current = longPathChild[current];
+    }
 
-        // Path
-        for (int k = 0; k < length; k++) {
-          ladder[length + k] = path.get(k);
-        }
+    int length = pathSize;
+    int[] ladder = new int[length * 2];
 
-        ladders.add(ladder);
-        for (int k = 0; k < length; k++) {
-          int node = path.get(k);
-          ladderId[node] = id;
-          ladderPos[node] = length + k;
-        }
-        id++;
-      }
+    // Ancestors
+    int anc = parent[head];
+    for (int k = 0; k < length; k++) {
+      ladder[length - 1 - k] = anc;
+      anc = parent[anc];
     }
+
+    // Path
+    System.arraycopy(pathBuffer, 0, ladder, length, length);
+
+    for (int k = 0; k < length; k++) {
+      int node = pathBuffer[k];
+      ladderId[node] = id;
+      ladderPos[node] = length + k;
+    }
+    return ladder;
   }
 
   //  Jump Nodes and Macro/Micro Split
-  private void identifyJumpNodes(int node, int[] successorsPerNode) {
+  private void identifyJumpNodes(int node) {
 
     // At the beginning, we assume that the current node is a leaf in the context of the Macro-skeleton
     boolean isLeafInMacroSense = true;
 
-    for (int child : adjacencyList.get(node)) {
+    for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
       if (child == parent[node]) continue; // TODO: Do we need that check?
-      identifyJumpNodes(child, successorsPerNode);
+      identifyJumpNodes(child);
       if (successorsPerNode[child] >= microBlockSize) {
         isLeafInMacroSense = false;
       }
@@ -196,31 +376,39 @@ public class LinearLevelAncestor {
     // Def. 4.1
     if (successorsPerNode[node] >= microBlockSize && isLeafInMacroSense) {
       isJumpNode[node] = true;
-      jumpNodesList.add(node);
     }
   }
 
   // Fill in Jump pointers for Jump nodes
   // Lemma 10 from article
   private void buildSparseJumpPointers() {
-    for (int node : jumpNodesList) {
-      jumpPointers[node] = new int[logN];
-      // We use Ladders for direct filling
-      for (int i = 0; i < logN; i++) {
-        int dist = 1 << i;
-        jumpPointers[node][i] = queryLadderOnly(node, dist);
+    for (int node = 0; node < nodesCount; node++) {
+      if (isJumpNode[node]) {
+        buildJumpPointers(node);
       }
     }
   }
 
+  private void buildJumpPointers(int node) {
+    // Arrays left by a previous build are reused
+    if (jumpPointers[node] == null || jumpPointers[node].length != pointerLevels) {
+      jumpPointers[node] = new int[pointerLevels];
+    }
+    // We use Ladders for direct filling
+    for (int i = 0; i < pointerLevels; i++) {
+      int dist = 1 << (i << pointerLevelShift);
+      jumpPointers[node][i] = queryLadderOnly(node, dist);
+    }
+  }
+
   // Utility method: search only by Ladder
   private int queryLadderOnly(int node, int distToNextPredecessor) {
 
     if (distToNextPredecessor == 0) return node;
 
-    // If the jump goes beyond the root -> return the root (0)
+    // If the jump goes beyond the root -> return the root
     // This is important because parent[root] == root
-    if (distToNextPredecessor >= depth[node]) return 0;
+    if (distToNextPredecessor >= depth[node]) return root;
 
     int[] ladder = ladders.get(ladderId[node]);
     int position = ladderPos[node];
@@ -249,7 +437,7 @@ public class LinearLevelAncestor {
 
     if (isJumpNode[node]) foundJumpNode = node;
 
-    for (int child : adjacencyList.get(node)) {
+    for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
       if (child == parent[node]) continue;
       int res = dfsMacroLink(child);
       // Use nearest jump node
@@ -269,54 +457,144 @@ public class LinearLevelAncestor {
   // Micro Trees Processing
   private void processMicroTrees(int root) {
 
-    List<Integer> microRoots = new ArrayList<>();
     for (int i = 0; i < nodesCount; i++) {
       if (jumpNodeDescendant[i] == -1) {
         if (i == root || jumpNodeDescendant[parent[i]] != -1) {
-          microRoots.add(i);
+          processMicroTree(i);
         }
       }
     }
+  }
 
-    Map<Integer, Integer> tempShapeRegistry = new HashMap<>();
-    for (int mRoot : microRoots) {
+  private void processMicroTree(int mRoot) {
 
-      List<Integer> nodes = new ArrayList<>();
-      currentShapeMask = 1; // anchor because of leading zeros
-      dfsMicroBitmask(mRoot, nodes);
-      int bitmaskCode = currentShapeMask;
+    // The nodes of the micro-tree are collected in pathBuffer
+    pathSize = 0;
+    currentShapeMask = 1; // anchor because of leading zeros
+    dfsMicroBitmask(mRoot);
+    int bitmaskCode = currentShapeMask;
 
-      int shapeId;
-      if (tempShapeRegistry.containsKey(bitmaskCode)) {
-        shapeId = tempShapeRegistry.get(bitmaskCode);
-      } else {
-        shapeId = shapesLibrary.size();
-        int[][] table = computeMicroTable(nodes);
-        shapesLibrary.add(table);
-        tempShapeRegistry.put(bitmaskCode, shapeId);
-      }
+    int mask = shapeKeys.length - 1;
+    int slot = spread(bitmaskCode) & mask;
+    while (shapeKeys[slot] != 0 && shapeKeys[slot] != bitmaskCode) slot = (slot + 1) & mask;
+    int shapeId;
+    if (shapeKeys[slot] == bitmaskCode) {
+      shapeId = shapeIds[slot];
+    } else {
+      shapeId = shapesLibrary.size();
+      int[][] table = computeMicroTable(pathBuffer, pathSize);
+      shapesLibrary.add(table);
+      shapeKeys[slot] = bitmaskCode;
+      shapeIds[slot] = shapeId;
+      if (2 * shapesLibrary.size() > shapeKeys.length) growShapeMap();
+    }
+
+    for (int k = 0; k < pathSize; k++) {
+      int node = pathBuffer[k];
+      microRoot[node] = mRoot;
+      microShapeId[node] = shapeId;
+      microDfsRank[node] = k;
+    }
+    if (shareMicroMappings) {
+      microOffsets[mRoot] = internOffsets(mRoot);
+      return;
+    }
+    // Not shared -> the array of the previous tree can be overwritten
+    int[] offsets = microOffsets[mRoot];
+    if (offsets == null || offsets.length != pathSize) {
+      offsets = new int[pathSize];
+    }
+    for (int k = 0; k < pathSize; k++) {
+      offsets[k] = pathBuffer[k] - mRoot;
+    }
+    microOffsets[mRoot] = offsets;
+  }
+
+  // The shared array equal to pathBuffer[0..pathSize) - mRoot, created on the first occurrence
+  private int[] internOffsets(int mRoot) {
+
+    int hash = 1; // Same as Arrays.hashCode of the offsets
+    for (int k = 0; k < pathSize; k++) {
+      hash = 31 * hash + (pathBuffer[k] - mRoot);
+    }
+    int mask = offsetTable.length - 1;
+    int slot = spread(hash) & mask;
+    for (int[] candidate; (candidate = offsetTable[slot]) != null; slot = (slot + 1) & mask) {
+      if (candidate.length == pathSize && sameOffsets(candidate, mRoot)) return candidate;
+    }
+
+    if (offsetCount >= nodesCount) {
+      // Updates keep adding arrays, most of them no longer used: start a new set, the old arrays stay valid
+      Arrays.fill(offsetTable, null);
+      offsetCount = 0;
+      slot = spread(hash) & mask;
+    }
 
-      int[] mapping = new int[nodes.size()];
-      for (int k = 0; k < nodes.size(); k++) {
-        int node = nodes.get(k);
-        microRoot[node] = mRoot;
-        microShapeId[node] = shapeId;
-        microDfsRank[node] = k;
-        mapping[k] = node;
+    int[] offsets = new int[pathSize];
+    for (int k = 0; k < pathSize; k++) {
+      offsets[k] = pathBuffer[k] - mRoot;
+    }
+    offsetTable[slot] = offsets;
+    if (2 * ++offsetCount > offsetTable.length) {
+      // Keep the load factor at most 1/2
+      int[][] old = offsetTable;
+      offsetTable = new int[old.length * 2][];
+      mask = offsetTable.length - 1;
+      for (int[] entry : old) {
+        if (entry == null) continue;
+        slot = spread(Arrays.hashCode(entry)) & mask;
+        while (offsetTable[slot] != null) slot = (slot + 1) & mask;
+        offsetTable[slot] = entry;
       }
-      microToGlobal[mRoot] = mapping;
     }
+    return offsets;
   }
 
-  private void dfsMicroBitmask(int node, List<Integer> nodes) {
+  private boolean sameOffsets(int[] offsets, int mRoot) {
 
-    nodes.add(node);
-    for (int child : adjacencyList.get(node)) {
+    for (int k = 0; k < pathSize; k++) {
+      if (offsets[k] != pathBuffer[k] - mRoot) return false;
+    }
+    return true;
+  }
+
+  // Keep the load factor of the shape map at most 1/2
+  private void growShapeMap() {
+
+    int[] oldKeys = shapeKeys;
+    int[] oldIds = shapeIds;
+    shapeKeys = new int[oldKeys.length * 2];
+    shapeIds = new int[oldKeys.length * 2];
+    int mask = shapeKeys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] == 0) continue;
+      int slot = spread(oldKeys[i]) & mask;
+      while (shapeKeys[slot] != 0) slot = (slot + 1) & mask;
+      shapeKeys[slot] = oldKeys[i];
+      shapeIds[slot] = oldIds[i];
+    }
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Number of distinct shared Micro-tree mappings (offset arrays) created since the last preprocess
+   */
+  int distinctMicroMappings() {
+    return offsetCount;
+  }
+
+  private void dfsMicroBitmask(int node) {
+
+    pathBuffer[pathSize++] = node;
+    for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
       if (child == parent[node]) continue;
       // Continue only if the child is micro node
       if (jumpNodeDescendant[child] == -1) {
         currentShapeMask = (currentShapeMask << 1);
-        dfsMicroBitmask(child, nodes);
+        dfsMicroBitmask(child);
         currentShapeMask = (currentShapeMask << 1) | 1;
       }
     }
@@ -337,19 +615,18 @@ public class LinearLevelAncestor {
 //  }
 
   // Calculates the table for a given shape (Brute force, but on a small size B)
-  private int[][] computeMicroTable(List<Integer> nodes) {
+  private int[][] computeMicroTable(int[] nodes, int size) {
 
-    int size = nodes.size();
     int[][] table = new int[size][size + 1]; // [localNode][k-th ancestor]
 
     for (int i = 0; i < size; i++) {
-      int node = nodes.get(i);
+      int node = nodes[i];
       globalToLocalBuffer[node] = i;
     }
 
-    int[] localParent = new int[size];
+    int[] localParent = localParentBuffer;
     for (int i = 0; i < size; i++) {
-      int node = nodes.get(i);
+      int node = nodes[i];
       int parent = this.parent[node];
       if (globalToLocalBuffer[parent] != -1) {
         // It's in the buffer -> we get its local number
@@ -371,7 +648,7 @@ public class LinearLevelAncestor {
     }
 
     for (int i = 0; i < size; i++) {
-      int u = nodes.get(i);
+      int u = nodes[i];
       globalToLocalBuffer[u] = -1;
     }
 
@@ -379,9 +656,10 @@ public class LinearLevelAncestor {
   }
 
   // --- QUERY: O(1) ---
+  @Override
   public int query(int u, int targetDepth) {
 
-    if (depth[u] < targetDepth) return -1;
+    if (depth[u] < targetDepth || targetDepth < 0) return -1;
     if (depth[u] == targetDepth) return u;
 
     // CASE 1: We are inside a Micro-Tree
@@ -399,7 +677,7 @@ public class LinearLevelAncestor {
         int resultLocalIdx = shapesLibrary.get(shapeID)[localIdx][dist];
 
         // Map the local index back to the global Node ID
-        return microToGlobal[mRoot][resultLocalIdx];
+        return mRoot + microOffsets[mRoot][resultLocalIdx];
 
       } else {
         // The target is above the Micro-Tree -> Jump to the Macro Skeleton
@@ -423,11 +701,585 @@ public class LinearLevelAncestor {
     // Step B: Use Jump Pointer (Largest power of 2)
     // Find k such that 2^k is the largest power of 2 fitting in 'dist'
     int k = Integer.numberOfTrailingZeros(Integer.highestOneBit(dist));
-    int mid = jumpPointers[v][k];
+    // (Sparse variant: the largest stored level not above k)
+    int mid = jumpPointers[v][k >>> pointerLevelShift];
 
     // Step C: Use Ladder to climb the remaining distance
     // The Ladder at 'mid' is guaranteed to cover the remaining height
+    // (Sparse variant: every extra hop to a Ladder top at least doubles the covered height)
     int remaining = depth[mid] - targetDepth;
     return queryLadderOnly(mid, remaining);
   }
+
+  // --- WEIGHTED LEVEL ANCESTOR ---
+
+  /**
+   * Computes the cumulative weight from the root for every node - O(N)
+   * edgeWeights[v] is the weight of the edge (parent(v), v), the value for the root is ignored.
+   * Must be called after preprocess.
+   */
+  public void preprocessWeights(long[] edgeWeights) {
+
+    longWeightedDepth = new long[nodesCount];
+    dfsLongWeights(root, 0, edgeWeights);
+  }
+
+  public void preprocessWeights(double[] edgeWeights) {
+
+    doubleWeightedDepth = new double[nodesCount];
+    dfsDoubleWeights(root, 0, edgeWeights);
+  }
+
+  private void dfsLongWeights(int node, long weight, long[] edgeWeights) {
+
+    longWeightedDepth[node] = weight;
+    for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
+      if (child == parent[node]) continue;
+      if (edgeWeights[child] < 0) {
+        throw new IllegalArgumentException("Negative weight on the edge to node " + child);
+      }
+      dfsLongWeights(child, weight + edgeWeights[child], edgeWeights);
+    }
+  }
+
+  private void dfsDoubleWeights(int node, double weight, double[] edgeWeights) {
+
+    doubleWeightedDepth[node] = weight;
+    for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
+      if (child == parent[node]) continue;
+      if (!(edgeWeights[child] >= 0)) {
+        throw new IllegalArgumentException("Negative or NaN weight on the edge to node " + child);
+      }
+      dfsDoubleWeights(child, weight + edgeWeights[child], edgeWeights);
+    }
+  }
+
+  /**
+   * Deepest ancestor of u (u included) whose cumulative weight from the root is at most maxWeight.
+   * Returns -1 if maxWeight is negative. O(log N)
+   */
+  public int weightedQuery(int u, long maxWeight) {
+
+    if (longWeightedDepth == null) throw new IllegalStateException("Long weights are not preprocessed");
+    if (maxWeight < 0) return -1;
+    long[] weights = longWeightedDepth;
+    return weightedSearch(u, node -> weights[node] <= maxWeight);
+  }
+
+  public int weightedQuery(int u, double maxWeight) {
+
+    if (doubleWeightedDepth == null) throw new IllegalStateException("Double weights are not preprocessed");
+    if (!(maxWeight >= 0)) return -1;
+    double[] weights = doubleWeightedDepth;
+    return weightedSearch(u, node -> weights[node] <= maxWeight);
+  }
+
+  // The weights are monotone along every root path, so 'fits' is true for a prefix of the ancestors of u
+  private int weightedSearch(int u, IntPredicate fits) {
+
+    // CASE 1: Micro-Tree - it has at most B nodes, so we simply climb
+    while (jumpNodeDescendant[u] == -1) {
+      if (fits.test(u)) return u;
+      if (u == root) return -1;
+      u = parent[u];
+    }
+    if (fits.test(u)) return u;
+
+    // CASE 2: Macro node - the Jump Pointers of its Jump Descendant bound the depth range
+    int v = jumpNodeDescendant[u];
+    int[] pointers = jumpPointers[v];
+
+    // Find the longest jump that still lands on a node that is too heavy
+    int k = pointerLevels - 1;
+    while (k >= 0 && fits.test(pointers[k])) {
+      k--;
+    }
+    // Even the parent of v fits -> v == u and the answer is its parent
+    if (k < 0) return pointers[0];
+
+    // The answer is above 'mid'. Its Ladder covers the range of the next stored jump,
+    // otherwise (sparse pointers) we hop to the Ladder top, which at least doubles the covered height.
+    // The root always fits (its weight is 0), so the loop ends.
+    int mid = pointers[k];
+    int[] ladder = ladders.get(ladderId[mid]);
+    while (!fits.test(ladder[0])) {
+      mid = ladder[0];
+      ladder = ladders.get(ladderId[mid]);
+    }
+    int lo = 0; // fits
+    int hi = ladderPos[mid]; // too heavy
+
+    while (hi - lo > 1) {
+      int m = (lo + hi) >>> 1;
+      if (fits.test(ladder[m])) {
+        lo = m;
+      } else {
+        hi = m;
+      }
+    }
+    return ladder[lo];
+  }
+
+  // --- ANCESTOR PATHS ---
+
+  /**
+   * The ancestors of u with depths in [fromDepth, toDepth], ordered from the highest one.
+   * The result is a list of read-only views into the Ladders (nothing is copied);
+   * a new slice starts only where the path leaves the top of a Ladder,
+   * so the work is O(1 + number of Ladders crossed).
+   * The views are valid until the next reset, preprocess or applyUpdates.
+   */
+  public List<IntBuffer> ancestorPath(int u, int fromDepth, int toDepth) {
+
+    if (fromDepth < 0 || fromDepth > toDepth || toDepth > depth[u]) {
+      throw new IllegalArgumentException(
+        "Invalid depth range [" + fromDepth + ", " + toDepth + "] for node " + u + " at depth " + depth[u]);
+    }
+
+    List<IntBuffer> slices = new ArrayList<>();
+    int v = query(u, toDepth);
+    while (true) {
+      int[] ladder = ladders.get(ladderId[v]);
+      int position = ladderPos[v];
+      // ladder[position - k] is the ancestor of v at distance k, down to index 0
+      int first = Math.max(0, position - (depth[v] - fromDepth));
+      slices.add(IntBuffer.wrap(ladder, first, position - first + 1).slice().asReadOnlyBuffer());
+
+      int top = ladder[first];
+      if (depth[top] == fromDepth) break;
+      // Stitch: continue from the parent of the Ladder top
+      v = parent[top];
+    }
+
+    Collections.reverse(slices);
+    return slices;
+  }
+
+  // --- PATH QUERIES ---
+
+  public int depth(int u) {
+    return depth[u];
+  }
+
+  /**
+   * Lowest common ancestor - binary search over the depth with O(1) queries, O(log H)
+   */
+  public int lca(int u, int v) {
+
+    int lo = 0; // Common ancestor depth
+    int hi = Math.min(depth[u], depth[v]);
+    if (query(u, hi) == query(v, hi)) return query(u, hi);
+
+    // query(u, lo) == query(v, lo) and query(u, hi) != query(v, hi)
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+      if (query(u, mid) == query(v, mid)) {
+        lo = mid;
+      } else {
+        hi = mid;
+      }
+    }
+    return query(u, lo);
+  }
+
+  /**
+   * The k-th node on the path from u to v (k = 0 is u), or -1 if the path is shorter than k
+   */
+  public int kthOnPath(int u, int v, int k) {
+
+    if (k < 0) return -1;
+    int w = lca(u, v);
+    int up = depth[u] - depth[w];
+    int down = depth[v] - depth[w];
+
+    // On the way up from u
+    if (k <= up) return query(u, depth[u] - k);
+    // On the way down to v
+    if (k <= up + down) return query(v, depth[w] + (k - up));
+    return -1;
+  }
+
+  /**
+   * Level Ancestor as if the tree were rooted at 'newRoot': the ancestor of u at distance targetDepth
+   * from newRoot, or -1 if u is closer to newRoot than that. No rebuild is needed.
+   */
+  public int queryRerooted(int newRoot, int u, int targetDepth) {
+    return kthOnPath(newRoot, u, targetDepth);
+  }
+
+  // --- LEVEL QUERIES ---
+
+  /**
+   * Rebuilds the level order after applyUpdates, O(N). The DFS entry times shift after every move,
+   * so it is rebuilt as a whole and only on request: callers that do not use the level queries never pay for it.
+   */
+  public void rebuildLevels() {
+    buildLevels();
+  }
+
+  /**
+   * The next node at the same depth as u in DFS order (it may be in another subtree), or -1. O(1)
+   */
+  public int levelSuccessor(int u) {
+
+    checkLevels();
+    int rank = levelRank[u] + 1;
+    return rank < levelStart[depth[u] + 1] ? levelOrder[rank] : -1;
+  }
+
+  /**
+   * The previous node at the same depth as u in DFS order, or -1. O(1)
+   */
+  public int levelPredecessor(int u) {
+
+    checkLevels();
+    int rank = levelRank[u] - 1;
+    return rank >= levelStart[depth[u]] ? levelOrder[rank] : -1;
+  }
+
+  /**
+   * Number of nodes at depth d inside the subtree of u - two binary searches by DFS entry time, O(log N)
+   */
+  public int subtreeLevelCount(int u, int d) {
+
+    checkLevels();
+    if (d < depth[u] || d >= height[root]) return 0;
+
+    int entry = dfsEntry[u];
+    int exit = entry + successorsPerNode[u]; // Exclusive
+    return firstEntryAtLeast(d, exit) - firstEntryAtLeast(d, entry);
+  }
+
+  private void checkLevels() {
+    if (levelsStale) {
+      throw new IllegalStateException("The levels are out of date, call rebuildLevels() after applyUpdates()");
+    }
+  }
+
+  // The first rank in level d whose node is entered at 'entry' or later
+  private int firstEntryAtLeast(int d, int entry) {
+
+    int lo = levelStart[d], hi = levelStart[d + 1];
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (dfsEntry[levelOrder[mid]] < entry) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  // --- BATCHED STRUCTURAL UPDATES ---
+
+  /**
+   * Detaches the subtree of 'child' from its parent.
+   * Takes effect on applyUpdates, the subtree must be linked again in the same batch.
+   * Deleting a subtree is not supported: the index covers a fixed set of nodes 0..nodesCount-1.
+   */
+  public void cut(int child) {
+
+    checkNode(child);
+    if (child == root) throw new IllegalArgumentException("The root cannot be cut");
+    for (int[] move : pendingMoves) {
+      if (move[0] == child) throw new IllegalArgumentException("Node " + child + " is already cut");
+    }
+    pendingMoves.add(new int[]{child, -1});
+  }
+
+  /**
+   * Attaches the subtree of a cut node below 'parent'. Takes effect on applyUpdates.
+   */
+  public void link(int parent, int child) {
+
+    checkNode(parent);
+    checkNode(child);
+    for (int[] move : pendingMoves) {
+      if (move[0] == child) {
+        if (move[1] != -1) throw new IllegalArgumentException("Node " + child + " is already linked");
+        move[1] = parent;
+        return;
+      }
+    }
+    throw new IllegalArgumentException("Node " + child + " must be cut before it is linked");
+  }
+
+  /**
+   * Drops all pending cut / link operations, e.g. after applyUpdates rejected them.
+   */
+  public void discardUpdates() {
+    pendingMoves.clear();
+  }
+
+  private void checkNode(int node) {
+    if (node < 0 || node >= nodesCount) throw new IllegalArgumentException("No such node: " + node);
+  }
+
+  /**
+   * Applies all pending cut / link operations and repairs only the affected parts of the index:
+   * the moved subtrees and the root paths of their old and new parents.
+   * Everything else (ladders, jump pointers, micro-trees) is left as it is.
+   * The repair costs O(moved nodes + depths of the old and new parents + sizes of the rebuilt Ladders and
+   * Micro-trees); the root paths are as long as the tree is deep, so on path-like trees it can reach O(N).
+   * The level order is not repaired: call rebuildLevels() before the next level query.
+   * The cumulative weights are dropped and have to be preprocessed again.
+   * An invalid batch (a cut node that is not linked, or links that create a cycle) is rejected as a whole:
+   * the tree and the index stay unchanged and the pending moves are kept, to be completed or discarded.
+   */
+  public void applyUpdates() {
+
+    if (pendingMoves.isEmpty()) return;
+    for (int[] move : pendingMoves) {
+      if (move[1] == -1) {
+        throw new IllegalStateException("Node " + move[0] + " is cut but not linked");
+      }
+    }
+    if (updateMark == null) {
+      // Sized by the capacity, like the other per-node arrays, so a reset to a bigger tree can still use them
+      updateMark = new int[depth.length];
+      changedMark = new int[depth.length];
+      ladderMark = new int[depth.length];
+    }
+
+    // 1. Rewire the tree, the old parents are needed for the repair (and a rollback)
+    int movesCount = pendingMoves.size();
+    int[] oldParents = new int[movesCount];
+    for (int i = 0; i < movesCount; i++) {
+      int child = pendingMoves.get(i)[0];
+      oldParents[i] = parent[child];
+      tree.removeEdge(parent[child], child);
+      tree.addEdge(pendingMoves.get(i)[1], child);
+      parent[child] = pendingMoves.get(i)[1];
+    }
+
+    // 2. Collect the moved subtrees (in their new places)
+    int stamp = ++updateStamp;
+    List<Integer> movedNodes = new ArrayList<>();
+    for (int[] move : pendingMoves) {
+      collectSubtree(move[0], stamp, movedNodes);
+    }
+
+    // 3. Every moved node must be reachable from an untouched node, otherwise the links made a cycle
+    int reachable = 0;
+    for (int[] move : pendingMoves) {
+      if (updateMark[parent[move[0]]] != stamp) {
+        reachable += countSubtree(move[0]);
+      }
+    }
+    if (reachable != movedNodes.size()) {
+      for (int i = movesCount - 1; i >= 0; i--) {
+        int child = pendingMoves.get(i)[0];
+        tree.removeEdge(parent[child], child);
+        tree.addEdge(oldParents[i], child);
+        parent[child] = oldParents[i];
+      }
+      throw new IllegalArgumentException("The links create a cycle, no update was applied");
+    }
+    for (int[] move : pendingMoves) {
+      if (updateMark[parent[move[0]]] != stamp) {
+        dfsUpdateDepth(move[0], depth[parent[move[0]]] + 1);
+      }
+    }
+
+    // 4. Changed nodes (their subtree changed): the moved nodes and the root paths of old and new parents
+    List<Integer> changedNodes = new ArrayList<>();
+    for (int node : movedNodes) {
+      changedMark[node] = stamp;
+      changedNodes.add(node);
+    }
+    for (int i = 0; i < movesCount; i++) {
+      markRootPath(oldParents[i], stamp, changedNodes);
+      markRootPath(pendingMoves.get(i)[1], stamp, changedNodes);
+    }
+    pendingMoves.clear();
+
+    // 5. Micro-trees and Ladders that contain changed nodes (decided by the old index)
+    int microStamp = ++updateStamp;
+    List<Integer> oldMicroRoots = new ArrayList<>();
+    List<Integer> affectedLadders = new ArrayList<>();
+    for (int node : changedNodes) {
+      if (jumpNodeDescendant[node] == -1) {
+        markOnce(microRoot[node], updateMark, microStamp, oldMicroRoots);
+      }
+      // A micro-tree below a changed node may be merged with it
+      for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
+        if (jumpNodeDescendant[child] == -1 && microRoot[child] == child) {
+          markOnce(child, updateMark, microStamp, oldMicroRoots);
+        }
+      }
+      markOnce(ladderId[node], ladderMark, stamp, affectedLadders);
+    }
+
+    // 6. Recompute heights, sizes, long paths and jump nodes bottom-up (children are up to date)
+    changedNodes.sort((a, b) -> depth[b] - depth[a]);
+    for (int node : changedNodes) {
+      recomputeNode(node);
+    }
+    // A new long path child drags its old ladder into the node's ladder
+    for (int node : changedNodes) {
+      if (longPathChild[node] != -1) {
+        markOnce(ladderId[longPathChild[node]], ladderMark, stamp, affectedLadders);
+      }
+    }
+
+    // 7. Rebuild the affected Ladders
+    int ladderStamp = ++updateStamp;
+    List<Integer> ladderNodes = new ArrayList<>();
+    for (int id : affectedLadders) {
+      int[] ladder = ladders.get(id);
+      for (int k = ladder.length / 2; k < ladder.length; k++) {
+        markOnce(ladder[k], updateMark, ladderStamp, ladderNodes);
+      }
+      ladders.set(id, null);
+      freeLadderIds.add(id);
+    }
+    for (int node : changedNodes) {
+      markOnce(node, updateMark, ladderStamp, ladderNodes);
+    }
+    for (int node : ladderNodes) {
+      if (node == root || longPathChild[parent[node]] != node) {
+        int id = freeLadderIds.isEmpty() ? ladders.size() : freeLadderIds.removeLast();
+        int[] ladder = buildLadder(node, id);
+        if (id == ladders.size()) {
+          ladders.add(ladder);
+        } else {
+          ladders.set(id, ladder);
+        }
+      }
+    }
+
+    // 8. Jump Pointers of changed nodes (the untouched Jump nodes keep their ancestors)
+    for (int node : changedNodes) {
+      if (isJumpNode[node]) {
+        buildJumpPointers(node);
+      } else {
+        jumpPointers[node] = null;
+      }
+    }
+
+    // 9. Rebuild the affected Micro-Trees
+    int microNodesStamp = ++updateStamp;
+    List<Integer> microNodes = new ArrayList<>();
+    for (int mRoot : oldMicroRoots) {
+      for (int offset : microOffsets[mRoot]) {
+        markOnce(mRoot + offset, updateMark, microNodesStamp, microNodes);
+      }
+      microOffsets[mRoot] = null;
+    }
+    for (int node : changedNodes) {
+      markOnce(node, updateMark, microNodesStamp, microNodes);
+    }
+    for (int node : microNodes) {
+      if (jumpNodeDescendant[node] != -1) {
+        microRoot[node] = -1; // Became a Macro node
+      }
+    }
+    for (int node : microNodes) {
+      if (jumpNodeDescendant[node] == -1 && (node == root || jumpNodeDescendant[parent[node]] != -1)) {
+        processMicroTree(node);
+      }
+    }
+
+    longWeightedDepth = null;
+    doubleWeightedDepth = null;
+    levelsStale = true;
+  }
+
+  // The subtree helpers of applyUpdates are iterative, so deep moved subtrees cannot overflow the stack
+
+  // Breadth-first, the list itself is the queue
+  private void collectSubtree(int node, int stamp, List<Integer> nodes) {
+
+    if (updateMark[node] == stamp) return; // Already collected (or a cycle)
+    updateMark[node] = stamp;
+    int next = nodes.size();
+    nodes.add(node);
+    while (next < nodes.size()) {
+      int v = nodes.get(next++);
+      for (int child = tree.firstChild[v]; child != -1; child = tree.nextSibling[child]) {
+        if (updateMark[child] == stamp) continue;
+        updateMark[child] = stamp;
+        nodes.add(child);
+      }
+    }
+  }
+
+  // pathBuffer is the stack, every node of the subtree is pushed once
+  private int countSubtree(int node) {
+
+    int count = 0;
+    int top = 0;
+    pathBuffer[top++] = node;
+    while (top > 0) {
+      int v = pathBuffer[--top];
+      count++;
+      for (int child = tree.firstChild[v]; child != -1; child = tree.nextSibling[child]) {
+        pathBuffer[top++] = child;
+      }
+    }
+    return count;
+  }
+
+  private void dfsUpdateDepth(int node, int depth) {
+
+    this.depth[node] = depth;
+    int top = 0;
+    pathBuffer[top++] = node;
+    while (top > 0) {
+      int v = pathBuffer[--top];
+      for (int child = tree.firstChild[v]; child != -1; child = tree.nextSibling[child]) {
+        this.depth[child] = this.depth[v] + 1;
+        pathBuffer[top++] = child;
+      }
+    }
+  }
+
+  // Marks 'node' and its ancestors, stops at the first already marked node (its ancestors are marked too)
+  private void markRootPath(int node, int stamp, List<Integer> changedNodes) {
+
+    while (changedMark[node] != stamp) {
+      changedMark[node] = stamp;
+      changedNodes.add(node);
+      if (node == root) return;
+      node = parent[node];
+    }
+  }
+
+  private static void markOnce(int value, int[] marks, int stamp, List<Integer> values) {
+
+    if (marks[value] != stamp) {
+      marks[value] = stamp;
+      values.add(value);
+    }
+  }
+
+  // Same rules as dfsBasic, identifyJumpNodes and dfsMacroLink, for one node
+  private void recomputeNode(int node) {
+
+    height[node] = 1;
+    successorsPerNode[node] = 1;
+    longPathChild[node] = -1;
+    int maxH = -1;
+    boolean isLeafInMacroSense = true;
+    int foundJumpNode = -1;
+
+    for (int child = tree.firstChild[node]; child != -1; child = tree.nextSibling[child]) {
+      successorsPerNode[node] += successorsPerNode[child];
+      if (height[child] > maxH) {
+        maxH = height[child];
+        longPathChild[node] = child;
+      }
+      height[node] = Math.max(height[node], height[child] + 1);
+      if (successorsPerNode[child] >= microBlockSize) {
+        isLeafInMacroSense = false;
+      }
+      if (jumpNodeDescendant[child] != -1) {
+        foundJumpNode = jumpNodeDescendant[child];
+      }
+    }
+
+    isJumpNode[node] = successorsPerNode[node] >= microBlockSize && isLeafInMacroSense;
+    jumpNodeDescendant[node] = isJumpNode[node] ? node : foundJumpNode;
+  }
 }
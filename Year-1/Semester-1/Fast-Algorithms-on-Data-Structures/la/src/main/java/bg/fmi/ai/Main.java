@@ -1,8 +1,27 @@
 package bg.fmi.ai;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
 public class Main {
 
-  public static void main(String[] args) {
+  /**
+   * No arguments: small demo.
+   * serve <tree file> <port | unix socket path>: query server, the tree file has one "parent child" pair per line.
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+
+    if (args.length == 3 && args[0].equals("serve")) {
+      serve(Path.of(args[1]), args[2]);
+      return;
+    }
 
     int n = 13;
     LinearLevelAncestor la = new LinearLevelAncestor(n);
@@ -26,4 +45,91 @@ public class Main {
     System.out.println(la.query(8, 4));
     System.out.println(la.query(6, 1));
   }
+
+  private static void serve(Path treeFile, String address) throws IOException, InterruptedException {
+
+    int[] parents = readParents(treeFile);
+    int root = 0;
+    while (parents[root] != -1) {
+      root++;
+    }
+    LevelAncestor index = LevelAncestorFactory.build(parents, root);
+
+    SocketAddress socketAddress = address.chars().allMatch(Character::isDigit)
+      ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address))
+      : UnixDomainSocketAddress.of(address);
+
+    // 200 us batch window
+    try (LevelAncestorServer server = new LevelAncestorServer(index, parents.length, 200_000, 1 << 16)) {
+      System.out.println("Serving " + parents.length + " nodes on " + server.start(socketAddress));
+      while (true) {
+        Thread.sleep(10_000);
+        System.out.println(server.stats());
+      }
+    }
+  }
+
+  // parents[root] == -1, every other node of 0..max id needs exactly one "parent child" line
+  private static int[] readParents(Path treeFile) throws IOException {
+
+    int[] parents = new int[16];
+    Arrays.fill(parents, -1);
+    int nodesCount = 1;
+
+    try (BufferedReader reader = Files.newBufferedReader(treeFile)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length != 2) continue;
+        int parent = Integer.parseInt(parts[0]);
+        int child = Integer.parseInt(parts[1]);
+        if (parent < 0 || child < 0 || parent == child) {
+          throw new IllegalArgumentException(treeFile + ": invalid edge \"" + line.trim() + "\"");
+        }
+
+        nodesCount = Math.max(nodesCount, Math.max(parent, child) + 1);
+        if (nodesCount > parents.length) {
+          int oldLength = parents.length;
+          parents = Arrays.copyOf(parents, Math.max(nodesCount, oldLength * 2));
+          Arrays.fill(parents, oldLength, parents.length, -1);
+        }
+        if (parents[child] != -1) {
+          throw new IllegalArgumentException(treeFile + ": node " + child + " has more than one parent");
+        }
+        parents[child] = parent;
+      }
+    }
+    parents = Arrays.copyOf(parents, nodesCount);
+
+    int root = -1;
+    for (int node = 0; node < nodesCount; node++) {
+      if (parents[node] != -1) continue;
+      if (root != -1) {
+        throw new IllegalArgumentException(treeFile + ": nodes " + root + " and " + node
+          + " have no parent, the tree needs exactly one root");
+      }
+      root = node;
+    }
+    if (root == -1) {
+      throw new IllegalArgumentException(treeFile + ": every node has a parent, the tree needs exactly one root");
+    }
+
+    // One root and one parent per other node - the only remaining problem is a cycle away from the root
+    int[] state = new int[nodesCount]; // 0 - not visited, 1 - on the current path, 2 - reaches the root
+    state[root] = 2;
+    for (int node = 0; node < nodesCount; node++) {
+      int v = node;
+      while (state[v] == 0) {
+        state[v] = 1;
+        v = parents[v];
+      }
+      if (state[v] == 1) {
+        throw new IllegalArgumentException(treeFile + ": node " + v + " is on a cycle, not below root " + root);
+      }
+      for (v = node; state[v] == 1; v = parents[v]) {
+        state[v] = 2;
+      }
+    }
+    return parents;
+  }
 }
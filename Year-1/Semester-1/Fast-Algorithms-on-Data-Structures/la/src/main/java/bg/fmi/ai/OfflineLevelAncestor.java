@@ -0,0 +1,124 @@
+package bg.fmi.ai;
+
+import java.util.Arrays;
+
+/**
+ * Offline Level Ancestor - the whole query set is known in advance and no index is kept.
+ * One iterative DFS keeps the current root path in an array, so the ancestor of the visited node
+ * at depth d is simply path[d].
+ * Time O(N + Q), extra memory O(height + Q) words plus 1.5 bits per node.
+ */
+public class OfflineLevelAncestor implements LevelAncestor {
+
+  private final RootedTree tree;
+  private int root = -1;
+
+  public OfflineLevelAncestor(int nodesCount) {
+    tree = new RootedTree(nodesCount);
+  }
+
+  @Override
+  public void addEdge(int parent, int child) {
+    tree.addEdge(parent, child);
+  }
+
+  /**
+   * Only remembers the root - there is nothing to precompute
+   */
+  @Override
+  public void preprocess(int root) {
+    this.root = root;
+  }
+
+  /**
+   * Single query - a full traversal, O(N). Use queryAll for real workloads.
+   */
+  @Override
+  public int query(int u, int targetDepth) {
+    return queryAll(new int[]{u}, new int[]{targetDepth})[0];
+  }
+
+  /**
+   * answers[i] = ancestor of nodes[i] at depth targetDepths[i] (-1 if deeper than the node or negative)
+   */
+  @Override
+  public int[] queryAll(int[] nodes, int[] targetDepths) {
+
+    if (root == -1) throw new IllegalStateException("preprocess must be called first");
+
+    int queriesCount = nodes.length;
+    int[] answers = new int[queriesCount];
+
+    // 1. Mark the queried nodes in a bitset with rank support (cumulative popcount per word)
+    long[] queried = new long[(tree.nodesCount + 63) >>> 6];
+    for (int node : nodes) {
+      queried[node >>> 6] |= 1L << node;
+    }
+    int[] rankBefore = new int[queried.length];
+    int distinct = 0;
+    for (int w = 0; w < queried.length; w++) {
+      rankBefore[w] = distinct;
+      distinct += Long.bitCount(queried[w]);
+    }
+
+    // 2. Counting sort of the queries by the rank of their node - O(Q)
+    int[] groupStart = new int[distinct + 1];
+    for (int node : nodes) {
+      groupStart[rank(queried, rankBefore, node) + 1]++;
+    }
+    for (int r = 0; r < distinct; r++) {
+      groupStart[r + 1] += groupStart[r];
+    }
+    int[] order = new int[queriesCount];
+    int[] fill = Arrays.copyOf(groupStart, distinct);
+    for (int q = 0; q < queriesCount; q++) {
+      order[fill[rank(queried, rankBefore, nodes[q])]++] = q;
+    }
+
+    // 3. Iterative DFS - path[d] is the current ancestor at depth d, cursor[d] its next child to visit
+    int[] path = new int[16];
+    int[] cursor = new int[16];
+    int depth = 0;
+    path[0] = root;
+    cursor[0] = tree.firstChild[root];
+    answerNode(root, 0, path, queried, rankBefore, groupStart, order, targetDepths, answers);
+
+    while (depth >= 0) {
+      int child = cursor[depth];
+      if (child == -1) {
+        depth--; // Subtree done -> go up
+        continue;
+      }
+      cursor[depth] = tree.nextSibling[child];
+
+      depth++;
+      if (depth == path.length) {
+        path = Arrays.copyOf(path, depth * 2);
+        cursor = Arrays.copyOf(cursor, depth * 2);
+      }
+      path[depth] = child;
+      cursor[depth] = tree.firstChild[child];
+      answerNode(child, depth, path, queried, rankBefore, groupStart, order, targetDepths, answers);
+    }
+
+    return answers;
+  }
+
+  private static int rank(long[] bits, int[] rankBefore, int node) {
+    return rankBefore[node >>> 6] + Long.bitCount(bits[node >>> 6] & ((1L << node) - 1));
+  }
+
+  // Answers all queries of 'node' while its root path is on the stack
+  private static void answerNode(int node, int depth, int[] path, long[] queried, int[] rankBefore,
+                                 int[] groupStart, int[] order, int[] targetDepths, int[] answers) {
+
+    if ((queried[node >>> 6] & (1L << node)) == 0) return;
+
+    int r = rank(queried, rankBefore, node);
+    for (int i = groupStart[r]; i < groupStart[r + 1]; i++) {
+      int q = order[i];
+      int targetDepth = targetDepths[q];
+      answers[q] = (targetDepth <= depth && targetDepth >= 0) ? path[targetDepth] : -1;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package bg.fmi.ai;
+
+import java.util.Arrays;
+
+/**
+ * Compact children lists ("first child / next sibling") shared by the simpler engines
+ */
+final class RootedTree {
+
+  int nodesCount;
+  int[] firstChild, nextSibling;
+
+  RootedTree(int nodesCount) {
+    reset(nodesCount);
+  }
+
+  /**
+   * Removes all edges, the arrays are reused when they are big enough
+   */
+  void reset(int nodesCount) {
+
+    this.nodesCount = nodesCount;
+    if (firstChild == null || firstChild.length < nodesCount) {
+      firstChild = new int[nodesCount];
+      nextSibling = new int[nodesCount];
+    }
+    Arrays.fill(firstChild, 0, nodesCount, -1);
+  }
+
+  void addEdge(int parent, int child) {
+    nextSibling[child] = firstChild[parent];
+    firstChild[parent] = child;
+  }
+
+  // O(number of children of parent)
+  void removeEdge(int parent, int child) {
+
+    if (firstChild[parent] == child) {
+      firstChild[parent] = nextSibling[child];
+      return;
+    }
+    for (int node = firstChild[parent]; node != -1; node = nextSibling[node]) {
+      if (nextSibling[node] == child) {
+        nextSibling[node] = nextSibling[child];
+        return;
+      }
+    }
+  }
+
+  /**
+   * Iterative DFS - fills parent (parent[root] == root) and depth, returns the nodes in preorder
+   */
+  int[] preorder(int root, int[] parent, int[] depth) {
+
+    int[] order = new int[nodesCount];
+    int[] stack = new int[nodesCount];
+    int top = 0, visited = 0;
+
+    parent[root] = root;
+    depth[root] = 0;
+    stack[top++] = root;
+
+    while (top > 0) {
+      int node = stack[--top];
+      order[visited++] = node;
+      for (int child = firstChild[node]; child != -1; child = nextSibling[child]) {
+        parent[child] = node;
+        depth[child] = depth[node] + 1;
+        stack[top++] = child;
+      }
+    }
+    return order;
+  }
+}
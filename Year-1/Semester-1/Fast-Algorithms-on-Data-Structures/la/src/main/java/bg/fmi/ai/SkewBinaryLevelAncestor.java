@@ -0,0 +1,52 @@
+package bg.fmi.ai;
+
+/**
+ * Myers' skew-binary jump pointers - every node stores only its parent and one jump pointer.
+ * The jump lengths follow the skew-binary number system, so a query needs O(log N) steps.
+ * Preprocessing and space O(N) with tiny constants.
+ */
+public class SkewBinaryLevelAncestor implements LevelAncestor {
+
+  private final RootedTree tree;
+  private final int[] depth, parent, jump;
+
+  public SkewBinaryLevelAncestor(int nodesCount) {
+    tree = new RootedTree(nodesCount);
+    depth = new int[nodesCount];
+    parent = new int[nodesCount];
+    jump = new int[nodesCount];
+  }
+
+  @Override
+  public void addEdge(int parent, int child) {
+    tree.addEdge(parent, child);
+  }
+
+  @Override
+  public void preprocess(int root) {
+
+    // Parents are processed before their children
+    for (int node : tree.preorder(root, parent, depth)) {
+      int p = parent[node];
+      if (node == root) {
+        jump[node] = root;
+      } else if (depth[p] - depth[jump[p]] == depth[jump[p]] - depth[jump[jump[p]]]) {
+        // Two equal jumps above the parent -> merge them into one twice as long (+1)
+        jump[node] = jump[jump[p]];
+      } else {
+        jump[node] = p;
+      }
+    }
+  }
+
+  @Override
+  public int query(int u, int targetDepth) {
+
+    if (depth[u] < targetDepth || targetDepth < 0) return -1;
+
+    while (depth[u] > targetDepth) {
+      u = depth[jump[u]] >= targetDepth ? jump[u] : parent[u];
+    }
+    return u;
+  }
+}
@@ -0,0 +1,305 @@
+package bg.fmi.ai;
+
+import java.util.Arrays;
+
+/**
+ * Succinct backend - the topology is kept only as balanced parentheses (2N bits):
+ * a DFS writes '(' (bit 1) when it enters a node and ')' (bit 0) when it leaves it.
+ * <p>
+ * With E(i) = opens - closes in bits[0..i], the node whose '(' is at x has depth E(x) - 1 and
+ * its ancestor at depth d opens right after the last position j < x with E(j) = d.
+ * That position is found with a range min-max tree over blocks of 1024 bits
+ * and byte tables inside a block, so a query costs O(log(N / 1024)) word operations.
+ * <p>
+ * Extra space: a rank and a min-max entry per block, a select sample per 1024 nodes (about 0.2N bits).
+ * If the node ids are not the preorder ranks, two id maps are kept as well (64N bits),
+ * so number the nodes in preorder for the smallest footprint.
+ * The children lists are released after preprocess.
+ */
+public class SuccinctLevelAncestor implements LevelAncestor {
+
+  private static final int BLOCK_SHIFT = 10;
+  private static final int WORDS_PER_BLOCK = 1 << (BLOCK_SHIFT - 6);
+
+  // Per byte value: excess after its 8 bits, and the minimum excess after each of its bits
+  private static final byte[] BYTE_EXCESS = new byte[256];
+  private static final byte[] BYTE_MIN_EXCESS = new byte[256];
+
+  static {
+    for (int b = 0; b < 256; b++) {
+      int excess = 0, min = Integer.MAX_VALUE;
+      for (int i = 0; i < 8; i++) {
+        excess += ((b >>> i) & 1) == 1 ? 1 : -1;
+        min = Math.min(min, excess);
+      }
+      BYTE_EXCESS[b] = (byte) excess;
+      BYTE_MIN_EXCESS[b] = (byte) min;
+    }
+  }
+
+  private final int nodesCount;
+  private RootedTree tree;
+
+  private long[] bits;
+  // Number of '(' before every block
+  private int[] blockRank;
+  // Position of every 1024-th '('
+  private int[] selectSample;
+  // Min-max tree (only the minimum is needed): leaves are the minimum E inside every block
+  private int[] minTree;
+  private int leaves;
+  // id <-> preorder rank, null when the ids already are the preorder ranks
+  private int[] toPreorder, fromPreorder;
+
+  public SuccinctLevelAncestor(int nodesCount) {
+    this.nodesCount = nodesCount;
+    tree = new RootedTree(nodesCount);
+  }
+
+  @Override
+  public void addEdge(int parent, int child) {
+    tree.addEdge(parent, child);
+  }
+
+  /**
+   * Builds the parentheses, then drops the children lists - call once
+   */
+  @Override
+  public void preprocess(int root) {
+
+    if (tree == null) throw new IllegalStateException("The tree is already preprocessed");
+
+    int length = 2 * nodesCount;
+    bits = new long[(length + 63) >>> 6];
+    toPreorder = new int[nodesCount];
+    fromPreorder = new int[nodesCount];
+
+    // 1. Iterative DFS writing the parentheses
+    int[] path = new int[16];
+    int[] cursor = new int[16];
+    int top = 0, position = 0, rank = 0;
+    path[0] = root;
+    cursor[0] = tree.firstChild[root];
+    toPreorder[root] = rank;
+    fromPreorder[rank++] = root;
+    bits[0] |= 1L;
+    position++;
+
+    while (top >= 0) {
+      int child = cursor[top];
+      if (child == -1) {
+        position++; // ')' is a 0 bit
+        top--;
+        continue;
+      }
+      cursor[top] = tree.nextSibling[child];
+
+      top++;
+      if (top == path.length) {
+        path = Arrays.copyOf(path, top * 2);
+        cursor = Arrays.copyOf(cursor, top * 2);
+      }
+      path[top] = child;
+      cursor[top] = tree.firstChild[child];
+      toPreorder[child] = rank;
+      fromPreorder[rank++] = child;
+      bits[position >>> 6] |= 1L << position;
+      position++;
+    }
+    if (rank != nodesCount) throw new IllegalArgumentException("Not all nodes are reachable from the root");
+    tree = null;
+
+    boolean identity = true;
+    for (int i = 0; i < nodesCount && identity; i++) {
+      identity = fromPreorder[i] == i;
+    }
+    if (identity) {
+      toPreorder = null;
+      fromPreorder = null;
+    }
+
+    // 2. Rank directory, select samples and the block minimums
+    int blocks = (length + (1 << BLOCK_SHIFT) - 1) >>> BLOCK_SHIFT;
+    blockRank = new int[blocks + 1];
+    selectSample = new int[(nodesCount >>> BLOCK_SHIFT) + 1];
+    leaves = Integer.highestOneBit(Math.max(1, blocks - 1)) << 1;
+    minTree = new int[2 * leaves];
+    Arrays.fill(minTree, Integer.MAX_VALUE);
+
+    int opens = 0, excess = 0;
+    for (int i = 0; i < length; i++) {
+      int block = i >>> BLOCK_SHIFT;
+      if ((i & ((1 << BLOCK_SHIFT) - 1)) == 0) blockRank[block] = opens;
+      if (bit(i)) {
+        if ((opens & ((1 << BLOCK_SHIFT) - 1)) == 0) selectSample[opens >>> BLOCK_SHIFT] = i;
+        opens++;
+        excess++;
+      } else {
+        excess--;
+      }
+      minTree[leaves + block] = Math.min(minTree[leaves + block], excess);
+    }
+    blockRank[blocks] = opens;
+    for (int node = leaves - 1; node >= 1; node--) {
+      minTree[node] = Math.min(minTree[2 * node], minTree[2 * node + 1]);
+    }
+  }
+
+  @Override
+  public int query(int u, int targetDepth) {
+
+    int x = openPosition(u);
+    int depth = excess(x) - 1;
+    if (depth < targetDepth || targetDepth < 0) return -1;
+    if (depth == targetDepth) return u;
+
+    int j = backwardSearch(x, targetDepth);
+    return nodeAt(j + 1);
+  }
+
+  public int depth(int u) {
+    return excess(openPosition(u)) - 1;
+  }
+
+  /**
+   * The parent of u, or -1 for the root
+   */
+  public int parent(int u) {
+
+    int x = openPosition(u);
+    if (x == 0) return -1;
+    return nodeAt(backwardSearch(x, excess(x) - 2) + 1);
+  }
+
+  /**
+   * Bytes used by the index (the parentheses, the directories and the id maps if any)
+   */
+  public long sizeInBytes() {
+
+    long words = bits.length * 2L + blockRank.length + selectSample.length + minTree.length;
+    if (toPreorder != null) words += toPreorder.length + fromPreorder.length;
+    return words * Integer.BYTES;
+  }
+
+  // --- Rank / Select ---
+
+  private boolean bit(int i) {
+    return (bits[i >>> 6] & (1L << i)) != 0;
+  }
+
+  // Number of '(' in bits[0..i)
+  private int rank(int i) {
+
+    int block = i >>> BLOCK_SHIFT;
+    int r = blockRank[block];
+    int word = block * WORDS_PER_BLOCK;
+    for (int end = i >>> 6; word < end; word++) {
+      r += Long.bitCount(bits[word]);
+    }
+    if ((i & 63) != 0) r += Long.bitCount(bits[word] & ((1L << i) - 1));
+    return r;
+  }
+
+  // Position of the k-th '(' (0-based)
+  private int select(int k) {
+
+    // The block lies between the blocks of the surrounding samples (a long run of ')' may separate them)
+    int sample = k >>> BLOCK_SHIFT;
+    int block = selectSample[sample] >>> BLOCK_SHIFT;
+    int last = sample + 1 < selectSample.length ? selectSample[sample + 1] >>> BLOCK_SHIFT : blockRank.length - 2;
+    while (block < last) {
+      int mid = (block + last + 1) >>> 1;
+      if (blockRank[mid] <= k) {
+        block = mid;
+      } else {
+        last = mid - 1;
+      }
+    }
+    int remaining = k - blockRank[block];
+    int word = block * WORDS_PER_BLOCK;
+    while (Long.bitCount(bits[word]) <= remaining) {
+      remaining -= Long.bitCount(bits[word]);
+      word++;
+    }
+    long w = bits[word];
+    for (int c = 0; c < remaining; c++) {
+      w &= w - 1; // Drop the lowest '('
+    }
+    return (word << 6) + Long.numberOfTrailingZeros(w);
+  }
+
+  // E(i) = opens - closes in bits[0..i]
+  private int excess(int i) {
+    return 2 * rank(i + 1) - (i + 1);
+  }
+
+  private int openPosition(int u) {
+    return select(toPreorder == null ? u : toPreorder[u]);
+  }
+
+  private int nodeAt(int openPosition) {
+
+    int preorder = rank(openPosition);
+    return fromPreorder == null ? preorder : fromPreorder[preorder];
+  }
+
+  // --- Range Min-Max search ---
+
+  // The last position j < x with E(j) <= target (then E(j) == target), -1 if there is none (E(-1) = 0)
+  private int backwardSearch(int x, int target) {
+
+    // x is a '(' -> E(x - 1) = E(x) - 1
+    int blockStart = (x >>> BLOCK_SHIFT) << BLOCK_SHIFT;
+    int found = scanBackward(x - 1, excess(x) - 1, blockStart, target);
+    if (found != -1) return found;
+
+    int block = previousBlockReaching(x >>> BLOCK_SHIFT, target);
+    if (block == -1) return -1;
+    int end = ((block + 1) << BLOCK_SHIFT) - 1;
+    return scanBackward(end, excess(end), block << BLOCK_SHIFT, target);
+  }
+
+  // The last position q in [from, p] with E(q) <= target, where e = E(p); -1 if there is none
+  private int scanBackward(int p, int e, int from, int target) {
+
+    // Bit by bit up to the end of a byte
+    while (p >= from && (p & 7) != 7) {
+      if (e <= target) return p;
+      e -= bit(p) ? 1 : -1;
+      p--;
+    }
+
+    // Byte by byte, entering a byte only if its minimum reaches the target
+    while (p >= from) {
+      int b = (int) (bits[p >>> 6] >>> (p & 56)) & 0xFF;
+      int before = e - BYTE_EXCESS[b];
+      if (before + BYTE_MIN_EXCESS[b] <= target) {
+        while (e > target) {
+          e -= bit(p) ? 1 : -1;
+          p--;
+        }
+        return p;
+      }
+      e = before;
+      p -= 8;
+    }
+    return -1;
+  }
+
+  // The last block before 'block' whose minimum E is at most target, -1 if there is none
+  private int previousBlockReaching(int block, int target) {
+
+    int node = leaves + block;
+    while (node > 1) {
+      if ((node & 1) == 1 && minTree[node - 1] <= target) {
+        node--;
+        while (node < leaves) {
+          node = minTree[2 * node + 1] <= target ? 2 * node + 1 : 2 * node;
+        }
+        return node - leaves;
+      }
+      node >>>= 1;
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,80 @@
+package bg.fmi.ai;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class BulkQueryPipelineTest {
+
+  @Test
+  public void testMatchesQueriesAcrossChunks(@TempDir Path directory) throws IOException {
+
+    int n = 20000, queries = 10007;
+    Random rand = new Random(32);
+    int[] parents = TestTrees.randomTree(n, 16, rand);
+    LinearLevelAncestor la = TestTrees.build(new LinearLevelAncestor(n), parents);
+
+    int[] nodes = new int[queries];
+    int[] depths = new int[queries];
+    TestTrees.randomQueries(parents, nodes, depths, rand);
+    // Invalid entries -> -1
+    nodes[5] = n;
+    depths[6] = -1;
+    depths[7] = n;
+
+    Path input = directory.resolve("queries.bin");
+    Path output = directory.resolve("answers.bin");
+    writeQueries(input, nodes, depths);
+
+    // Chunk size that does not divide the number of queries
+    ForkJoinPool pool = new ForkJoinPool(4);
+    long answered;
+    try {
+      answered = new BulkQueryPipeline(la, n, 1000).run(input, output, pool);
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(queries, answered);
+    assertEquals(queries * 4L, Files.size(output));
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(output)))) {
+      for (int q = 0; q < queries; q++) {
+        int expected = q == 5 || q == 6 ? -1 : la.query(nodes[q], depths[q]);
+        assertEquals(expected, in.readInt(), "query " + q);
+      }
+    }
+  }
+
+  @Test
+  public void testRejectsTruncatedFile(@TempDir Path directory) throws IOException {
+
+    Path input = directory.resolve("queries.bin");
+    Files.write(input, new byte[12]);
+    LinearLevelAncestor la = TestTrees.build(new LinearLevelAncestor(2), new int[]{0, 0});
+
+    assertThrows(IllegalArgumentException.class,
+      () -> new BulkQueryPipeline(la, 2).run(input, directory.resolve("answers.bin")));
+  }
+
+  static void writeQueries(Path file, int[] nodes, int[] depths) throws IOException {
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+      for (int q = 0; q < nodes.length; q++) {
+        out.writeInt(nodes[q]);
+        out.writeInt(depths[q]);
+      }
+    }
+  }
+}
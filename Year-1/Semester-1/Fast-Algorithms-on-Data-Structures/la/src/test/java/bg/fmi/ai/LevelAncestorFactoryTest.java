@@ -0,0 +1,70 @@
+package bg.fmi.ai;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class LevelAncestorFactoryTest {
+
+  /**
+   * Every engine on the same trees (random, path, star, broom) against the naive parent walk,
+   * including targets below the node and negative depths (-1 in every engine)
+   */
+  @Test
+  public void testEveryEngineMatchesNaive() {
+
+    int n = 3000;
+    Random rand = new Random(28);
+
+    for (String shape : new String[]{"random", "deep", "path", "star", "broom", "binary"}) {
+      int[] parents = TestTrees.shape(shape, n, rand);
+      int[] depth = new int[n];
+      for (int i = 1; i < n; i++) {
+        depth[i] = depth[parents[i]] + 1;
+      }
+
+      for (LevelAncestorFactory.Engine engine : LevelAncestorFactory.Engine.values()) {
+        LevelAncestor la = TestTrees.build(engine.create(n), parents);
+
+        for (int k = 0; k < 5000; k++) {
+          int u = rand.nextInt(n);
+          int targetDepth = rand.nextInt(depth[u] + 3) - 1;
+
+          int expected = targetDepth > depth[u] || targetDepth < 0 ? -1 : u;
+          for (int d = depth[u]; expected >= 0 && d > targetDepth; d--) {
+            expected = parents[expected];
+          }
+          assertEquals(expected, la.query(u, targetDepth),
+            String.format("%s on %s: Node %d, Target %d", engine, shape, u, targetDepth));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSelectionByShape() {
+
+    assertEquals(LevelAncestorFactory.Engine.SKEW_BINARY, LevelAncestorFactory.select(1_000_000, 2));
+    assertEquals(LevelAncestorFactory.Engine.BINARY_LIFTING, LevelAncestorFactory.select(1_000_000, 30));
+    assertEquals(LevelAncestorFactory.Engine.JUMP_LADDER, LevelAncestorFactory.select(1000, 1000));
+    assertEquals(LevelAncestorFactory.Engine.LINEAR, LevelAncestorFactory.select(1_000_000, 900_000));
+  }
+
+  /**
+   * Root is not node 0
+   * 3 -> 1 -> 0 -> 2
+   */
+  @Test
+  public void testBuildWithCustomRoot() {
+
+    int[] parents = {1, 3, 0, 3};
+    LevelAncestor la = LevelAncestorFactory.build(parents, 3);
+
+    assertEquals(3, la.query(2, 0));
+    assertEquals(1, la.query(2, 1));
+    assertEquals(0, la.query(2, 2));
+    assertEquals(-1, la.query(1, 2));
+  }
+}
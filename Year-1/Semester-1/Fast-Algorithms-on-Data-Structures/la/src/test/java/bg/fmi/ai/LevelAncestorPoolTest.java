@@ -0,0 +1,104 @@
+package bg.fmi.ai;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+public class LevelAncestorPoolTest {
+
+  @Test
+  public void testReleasedInstancesAreReusedForSmallerTrees() {
+
+    Random rand = new Random(39);
+    LinearLevelAncestor first = LevelAncestorPool.acquire(1000);
+    LevelAncestorPool.release(first);
+
+    // Capacity 1024 serves every tree of 513..1024 nodes, whatever the previous tree was
+    for (int n : new int[]{1000, 600, 1024, 513}) {
+      int[] parents = TestTrees.randomTree(n, 1 + rand.nextInt(20), rand);
+      LinearLevelAncestor la = TestTrees.build(LevelAncestorPool.acquire(n), parents);
+      assertSame(first, la);
+
+      for (int k = 0; k < 2000; k++) {
+        int u = rand.nextInt(n);
+        int expected = u, depth = 0;
+        for (int v = u; v != 0; v = parents[v]) depth++;
+        int targetDepth = rand.nextInt(depth + 1);
+        for (int d = depth; d > targetDepth; d--) expected = parents[expected];
+        assertEquals(expected, la.query(u, targetDepth), String.format("N=%d: Node %d, Target %d", n, u, targetDepth));
+      }
+      LevelAncestorPool.release(la);
+    }
+
+    // A different capacity or a different thread gets another instance
+    assertNotSame(first, LevelAncestorPool.acquire(2000));
+    assertNotSame(first, CompletableFuture.supplyAsync(() -> LevelAncestorPool.acquire(1000)).join());
+    assertSame(first, LevelAncestorPool.acquire(1000));
+  }
+
+  @Test
+  public void testUpdatesAfterReuseForABiggerTree() {
+
+    Random rand = new Random(30);
+    int[] small = TestTrees.randomTree(100, 5, rand);
+    LinearLevelAncestor la = TestTrees.build(LevelAncestorPool.acquire(100), small);
+    la.cut(50);
+    la.link(0, 50);
+    la.applyUpdates();
+    LevelAncestorPool.release(la);
+
+    // Same capacity (128), more nodes than the first tree had
+    int[] parents = TestTrees.randomTree(120, 5, rand);
+    assertSame(la, TestTrees.build(LevelAncestorPool.acquire(120), parents));
+    la.cut(110);
+    la.link(0, 110);
+    la.applyUpdates();
+    parents[110] = 0;
+
+    for (int u = 0; u < 120; u++) {
+      int depth = 0;
+      for (int v = u; v != 0; v = parents[v]) depth++;
+      for (int targetDepth = 0, expected; targetDepth <= depth; targetDepth++) {
+        expected = u;
+        for (int d = depth; d > targetDepth; d--) expected = parents[expected];
+        assertEquals(expected, la.query(u, targetDepth), String.format("Node %d, Target %d", u, targetDepth));
+      }
+    }
+    LevelAncestorPool.release(la);
+  }
+
+  @Test
+  public void testInstancesWithOtherOptionsAreNotPooled() {
+
+    LinearLevelAncestor sparse = new LinearLevelAncestor(4096, 1, 1);
+    LinearLevelAncestor scaled = new LinearLevelAncestor(4096, 0, 2);
+    LinearLevelAncestor shared = new LinearLevelAncestor(4096, 0, 1, true);
+    LevelAncestorPool.release(sparse);
+    LevelAncestorPool.release(scaled);
+    LevelAncestorPool.release(shared);
+
+    LinearLevelAncestor la = LevelAncestorPool.acquire(4000);
+    assertNotSame(sparse, la);
+    assertNotSame(scaled, la);
+    assertNotSame(shared, la);
+  }
+
+  @Test
+  public void testDoubleReleaseIsRejected() {
+
+    LinearLevelAncestor la = LevelAncestorPool.acquire(100);
+    LevelAncestorPool.release(la);
+    assertThrows(IllegalStateException.class, () -> LevelAncestorPool.release(la));
+
+    // The rejected call must not have added a second copy
+    assertSame(la, LevelAncestorPool.acquire(100));
+    assertNotSame(la, LevelAncestorPool.acquire(100));
+    LevelAncestorPool.release(la);
+  }
+}
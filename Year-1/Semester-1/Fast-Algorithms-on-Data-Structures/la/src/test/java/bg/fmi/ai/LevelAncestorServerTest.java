@@ -0,0 +1,191 @@
+package bg.fmi.ai;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class LevelAncestorServerTest {
+
+  private static final int N = 5000;
+
+  @Test
+  public void testConcurrentClientsOverLoopback() throws Exception {
+
+    int[] parents = TestTrees.randomTree(N, 8, new Random(31));
+    LevelAncestor index = TestTrees.build(new LinearLevelAncestor(N), parents);
+
+    try (LevelAncestorServer server = new LevelAncestorServer(index, N, 1_000_000, 1 << 16)) {
+      SocketAddress address = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+      int clients = 16, framesPerClient = 50;
+      try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        List<Future<?>> results = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+          int seed = c;
+          results.add(executor.submit(() -> runClient(address, index, framesPerClient, new Random(seed))));
+        }
+        for (Future<?> result : results) {
+          result.get();
+        }
+      }
+
+      LevelAncestorServer.Stats stats = server.stats();
+      assertEquals(clients * framesPerClient * 10L, stats.queries());
+      assertTrue(stats.batches() <= clients * framesPerClient);
+      assertTrue(stats.p50Nanos() <= stats.p99Nanos() && stats.p99Nanos() <= stats.maxNanos());
+    }
+  }
+
+  @Test
+  public void testUnixDomainSocketAndInvalidNode(@TempDir Path directory) throws Exception {
+
+    int[] parents = TestTrees.randomTree(N, 8, new Random(32));
+    LevelAncestor index = TestTrees.build(new LinearLevelAncestor(N), parents);
+
+    try (LevelAncestorServer server = new LevelAncestorServer(index, N, 100_000, 1 << 16)) {
+      SocketAddress address = server.start(UnixDomainSocketAddress.of(directory.resolve("la.sock")));
+
+      runClient(address, index, 5, new Random(1));
+
+      try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+        channel.connect(address);
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        out.writeInt(1);
+        out.writeInt(N); // No such node
+        out.writeInt(0);
+        out.flush();
+        assertEquals(-1, in.readInt());
+      }
+    }
+  }
+
+  @Test
+  public void testNegativeDepthDoesNotFailOtherClientsInTheBatch() throws Exception {
+
+    int[] parents = TestTrees.randomTree(N, 8, new Random(33));
+    LevelAncestor index = TestTrees.build(new LinearLevelAncestor(N), parents);
+
+    // A long batch window, so the frames of all clients end up in the same batch
+    try (LevelAncestorServer server = new LevelAncestorServer(index, N, 200_000_000, 1 << 16)) {
+      SocketAddress address = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+      try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+        List<Future<?>> results = new ArrayList<>();
+        for (int c = 0; c < 4; c++) {
+          int seed = c;
+          results.add(executor.submit(() -> runClient(address, index, 1, new Random(seed))));
+        }
+        Future<int[]> mixed = executor.submit(() -> sendFrame(address, new int[]{N - 1, 1, 0}, new int[]{0, -5, 0}));
+        for (Future<?> result : results) {
+          result.get();
+        }
+        assertArrayEquals(new int[]{0, -1, 0}, mixed.get());
+      }
+    }
+  }
+
+  @Test
+  public void testCloseFailsRequestsWaitingForTheirBatch() throws Exception {
+
+    int[] parents = TestTrees.randomTree(N, 8, new Random(34));
+    LevelAncestor index = TestTrees.build(new LinearLevelAncestor(N), parents);
+
+    // The batch window is far longer than the test, the request is still waiting when the server closes
+    LevelAncestorServer server = new LevelAncestorServer(index, N, 60_000_000_000L, 1 << 16);
+    SocketAddress address = server.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      executor.submit(() -> sendFrame(address, new int[]{1}, new int[]{0}));
+      while (server.activeConnections() == 0) {
+        Thread.sleep(1);
+      }
+      Thread.sleep(100);
+      server.close();
+
+      // The connection thread is released instead of waiting for an answer forever
+      long deadline = System.nanoTime() + 5_000_000_000L;
+      while (server.activeConnections() > 0 && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+      assertEquals(0, server.activeConnections());
+    }
+  }
+
+  // Sends one frame and returns the answers, null for a rejected request
+  private static int[] sendFrame(SocketAddress address, int[] nodes, int[] depths) throws IOException {
+
+    try (SocketChannel channel = SocketChannel.open()) {
+      channel.connect(address);
+      DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+      DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+      out.writeInt(nodes.length);
+      for (int i = 0; i < nodes.length; i++) {
+        out.writeInt(nodes[i]);
+        out.writeInt(depths[i]);
+      }
+      out.flush();
+
+      int count = in.readInt();
+      if (count < 0) return null;
+      int[] answers = new int[count];
+      for (int i = 0; i < count; i++) {
+        answers[i] = in.readInt();
+      }
+      return answers;
+    }
+  }
+
+  // Sends frames of 10 random queries and checks the answers against the index
+  private static Void runClient(SocketAddress address, LevelAncestor index, int frames, Random rand) throws IOException {
+
+    try (SocketChannel channel = address instanceof UnixDomainSocketAddress
+      ? SocketChannel.open(StandardProtocolFamily.UNIX)
+      : SocketChannel.open()) {
+      channel.connect(address);
+      DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+      DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+
+      for (int f = 0; f < frames; f++) {
+        int[] nodes = new int[10];
+        int[] depths = new int[10];
+        out.writeInt(nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+          nodes[i] = rand.nextInt(N);
+          depths[i] = rand.nextInt(N / 4);
+          out.writeInt(nodes[i]);
+          out.writeInt(depths[i]);
+        }
+        out.flush();
+
+        assertEquals(nodes.length, in.readInt());
+        int[] answers = new int[nodes.length];
+        for (int i = 0; i < answers.length; i++) {
+          answers[i] = in.readInt();
+        }
+        assertArrayEquals(index.queryAll(nodes, depths), answers);
+      }
+    }
+    return null;
+  }
+}
@@ -1,10 +1,16 @@
 package bg.fmi.ai;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.Test;
 
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 public class LinearLevelAncestorTest {
@@ -519,6 +525,546 @@ public class LinearLevelAncestorTest {
     }
   }
 
+  /**
+   * Weighted path 0 -(5)-> 1 -(0)-> 2 -(3)-> 3 -(10)-> 4
+   * Cumulative weights: 0, 5, 5, 8, 18
+   */
+  @Test
+  public void testWeightedQueryOnPath() {
+
+    int n = 5;
+    LinearLevelAncestor la = new LinearLevelAncestor(n);
+    for (int i = 0; i < n - 1; i++) {
+      la.addEdge(i, i + 1);
+    }
+    la.preprocess(0);
+    la.preprocessWeights(new long[]{0, 5, 0, 3, 10});
+
+    assertEquals(4, la.weightedQuery(4, 18L));
+    assertEquals(3, la.weightedQuery(4, 17L));
+    assertEquals(2, la.weightedQuery(4, 5L));
+    assertEquals(0, la.weightedQuery(4, 4L));
+    assertEquals(-1, la.weightedQuery(4, -1L));
+    assertEquals(2, la.weightedQuery(2, 100L));
+  }
+
+  @Test
+  public void testWeightedQueryOnLargeRandomTree() {
+
+    int n = 1000;
+    LinearLevelAncestor la = new LinearLevelAncestor(n);
+
+    int[] verificationParents = new int[n];
+    long[] longWeights = new long[n];
+    double[] doubleWeights = new double[n];
+    long[] prefix = new long[n];
+
+    Random rand = new Random(26);
+
+    for (int i = 1; i < n; i++) {
+      // Deep tree, so the Jump Pointers and Ladders are used
+      int parent = Math.max(0, i - 1 - rand.nextInt(3));
+      la.addEdge(parent, i);
+      verificationParents[i] = parent;
+      longWeights[i] = rand.nextInt(4); // zero weights included
+      doubleWeights[i] = longWeights[i] * 0.5;
+      prefix[i] = prefix[parent] + longWeights[i];
+    }
+
+    la.preprocess(0);
+    la.preprocessWeights(longWeights);
+    la.preprocessWeights(doubleWeights);
+
+    for (int k = 0; k < 20_000; k++) {
+
+      int u = rand.nextInt(n);
+      long limit = rand.nextLong(prefix[u] + 2);
+
+      int expected = u;
+      while (prefix[expected] > limit) {
+        expected = verificationParents[expected];
+      }
+
+      assertEquals(expected, la.weightedQuery(u, limit),
+        String.format("Long weights: Node %d, Limit %d", u, limit));
+      assertEquals(expected, la.weightedQuery(u, limit * 0.5 + 0.25),
+        String.format("Double weights: Node %d, Limit %d", u, limit));
+    }
+  }
+
+  /**
+   * Moves the subtree of 3 from 2 to 4 and the subtree of 6 from 5 to 0
+   * 0 -> 1 -> 2 -> 3 -> 5 -> 6        0 -> 1 -> 2
+   *      |                       =>   |    |
+   *      4                            6    4 -> 3 -> 5
+   */
+  @Test
+  public void testCutAndLink() {
+
+    int n = 7;
+    LinearLevelAncestor la = new LinearLevelAncestor(n);
+    la.addEdge(0, 1); la.addEdge(1, 2); la.addEdge(2, 3);
+    la.addEdge(3, 5); la.addEdge(5, 6); la.addEdge(1, 4);
+    la.preprocess(0);
+
+    la.cut(3);
+    la.cut(6);
+    la.link(4, 3);
+    la.link(0, 6);
+    la.applyUpdates();
+
+    assertEquals(4, la.query(5, 2));
+    assertEquals(3, la.query(5, 3));
+    assertEquals(1, la.query(5, 1));
+    assertEquals(0, la.query(6, 0));
+    assertEquals(-1, la.query(6, 2));
+    assertEquals(2, la.query(2, 2));
+  }
+
+  @Test
+  public void testLinkCreatingCycleIsRejected() {
+
+    int n = 4;
+    LinearLevelAncestor la = new LinearLevelAncestor(n);
+    la.addEdge(0, 1); la.addEdge(1, 2); la.addEdge(2, 3);
+    la.preprocess(0);
+
+    la.cut(1);
+    la.link(3, 1);
+    assertThrows(IllegalArgumentException.class, la::applyUpdates);
+
+    // The tree is unchanged, the rejected moves stay pending until they are discarded
+    assertEquals(2, la.query(3, 2));
+    assertEquals(0, la.query(3, 0));
+    assertThrows(IllegalArgumentException.class, la::applyUpdates);
+    la.discardUpdates();
+    la.applyUpdates();
+    assertEquals(2, la.query(3, 2));
+  }
+
+  @Test
+  public void testInvalidUpdatesKeepValidMoves() {
+
+    int n = 7;
+    LinearLevelAncestor la = new LinearLevelAncestor(n);
+    la.addEdge(0, 1); la.addEdge(1, 2); la.addEdge(2, 3);
+    la.addEdge(3, 5); la.addEdge(5, 6); la.addEdge(1, 4);
+    la.preprocess(0);
+
+    // Bad ids are rejected before anything is recorded
+    assertThrows(IllegalArgumentException.class, () -> la.cut(n));
+    assertThrows(IllegalArgumentException.class, () -> la.cut(-1));
+    la.cut(3);
+    assertThrows(IllegalArgumentException.class, () -> la.link(n, 3));
+    assertThrows(IllegalArgumentException.class, () -> la.link(-1, 3));
+    la.link(4, 3);
+
+    // A cut without a link rejects the batch but keeps the valid move
+    la.cut(6);
+    assertThrows(IllegalStateException.class, la::applyUpdates);
+    assertEquals(3, la.query(5, 3));
+    la.link(0, 6);
+    la.applyUpdates();
+
+    assertEquals(4, la.query(5, 2));
+    assertEquals(3, la.query(5, 3));
+    assertEquals(0, la.query(6, 0));
+    assertEquals(-1, la.query(6, 2));
+  }
+
+  @Test
+  public void testRandomBatchedUpdatesMatchNaive() {
+
+    // N > 2^16, so B = 4 and the Micro-Trees have several nodes
+    int n = 70_000;
+    LinearLevelAncestor la = new LinearLevelAncestor(n);
+
+    int[] verificationParents = new int[n];
+    Random rand = new Random(29);
+    for (int i = 1; i < n; i++) {
+      int parent = Math.max(0, i - 1 - rand.nextInt(40));
+      la.addEdge(parent, i);
+      verificationParents[i] = parent;
+    }
+    la.preprocess(0);
+
+    // A node can be cut only once per batch: movedInBatch[child] == batch + 1
+    int[] movedInBatch = new int[n];
+    for (int batch = 0; batch < 200; batch++) {
+
+      int moves = 1 + rand.nextInt(5);
+      for (int m = 0; m < moves; m++) {
+        int child;
+        do {
+          child = 1 + rand.nextInt(n - 1);
+        } while (movedInBatch[child] == batch + 1);
+        movedInBatch[child] = batch + 1;
+        int newParent;
+        do {
+          newParent = rand.nextInt(n);
+        } while (isInSubtree(newParent, child, verificationParents));
+
+        la.cut(child);
+        la.link(newParent, child);
+        verificationParents[child] = newParent;
+      }
+      la.applyUpdates();
+
+      for (int k = 0; k < 300; k++) {
+        int u = rand.nextInt(n);
+        int trueDepth = getDepthNaive(u, verificationParents);
+        int targetDepth = rand.nextInt(trueDepth + 1);
+
+        assertEquals(getAncestorNaive(u, targetDepth, verificationParents), la.query(u, targetDepth),
+          String.format("Batch %d: Node %d, Depth %d, Target %d", batch, u, trueDepth, targetDepth));
+      }
+    }
+  }
+
+  @Test
+  public void testResetReusesInstanceForDifferentTrees() {
+
+    LinearLevelAncestor la = new LinearLevelAncestor(5000);
+    Random rand = new Random(30);
+
+    // Smaller than the capacity, bigger but still within it, bigger than it, and smaller again
+    for (int n : new int[]{300, 5000, 70_000, 1, 5000}) {
+      la.reset(n);
+
+      int[] verificationParents = new int[n];
+      for (int i = 1; i < n; i++) {
+        int parent = Math.max(0, i - 1 - rand.nextInt(1 + n / 100));
+        la.addEdge(parent, i);
+        verificationParents[i] = parent;
+      }
+      la.preprocess(0);
+
+      for (int k = 0; k < 3000; k++) {
+        int u = rand.nextInt(n);
+        int trueDepth = getDepthNaive(u, verificationParents);
+        int targetDepth = rand.nextInt(trueDepth + 1);
+
+        assertEquals(getAncestorNaive(u, targetDepth, verificationParents), la.query(u, targetDepth),
+          String.format("N=%d: Node %d, Depth %d, Target %d", n, u, trueDepth, targetDepth));
+      }
+      if (n == 1) continue;
+
+      // The update buffers must follow the reused instance too
+      boolean[] moved = new boolean[n];
+      for (int m = 0; m < 10; m++) {
+        int child;
+        do {
+          child = 1 + rand.nextInt(n - 1);
+        } while (moved[child]);
+        moved[child] = true;
+        int newParent;
+        do {
+          newParent = rand.nextInt(n);
+        } while (isInSubtree(newParent, child, verificationParents));
+        la.cut(child);
+        la.link(newParent, child);
+        verificationParents[child] = newParent;
+      }
+      la.applyUpdates();
+
+      for (int k = 0; k < 3000; k++) {
+        int u = rand.nextInt(n);
+        int targetDepth = rand.nextInt(getDepthNaive(u, verificationParents) + 1);
+        assertEquals(getAncestorNaive(u, targetDepth, verificationParents), la.query(u, targetDepth),
+          String.format("N=%d after updates: Node %d, Target %d", n, u, targetDepth));
+      }
+    }
+  }
+
+  @Test
+  public void testAncestorPathSlicesMatchNaive() {
+
+    int n = 5000;
+    Random rand = new Random(33);
+    int[] parents = TestTrees.randomTree(n, 4, rand);
+    LinearLevelAncestor la = TestTrees.build(new LinearLevelAncestor(n), parents);
+
+    for (int i = 0; i < 2000; i++) {
+      int u = rand.nextInt(n);
+      int d = getDepthNaive(u, parents);
+      int toDepth = rand.nextInt(d + 1);
+      int fromDepth = rand.nextInt(toDepth + 1);
+
+      List<IntBuffer> slices = la.ancestorPath(u, fromDepth, toDepth);
+      int expectedDepth = fromDepth;
+      for (IntBuffer slice : slices) {
+        assertTrue(slice.isReadOnly());
+        while (slice.hasRemaining()) {
+          assertEquals(getAncestorNaive(u, expectedDepth, parents), slice.get(),
+            String.format("Node %d, range [%d, %d], depth %d", u, fromDepth, toDepth, expectedDepth));
+          expectedDepth++;
+        }
+      }
+      assertEquals(toDepth + 1, expectedDepth);
+    }
+
+    // A path is a single Ladder -> a single slice
+    int[] path = TestTrees.shape("path", 1000, rand);
+    LinearLevelAncestor pathLa = TestTrees.build(new LinearLevelAncestor(1000), path);
+    List<IntBuffer> slices = pathLa.ancestorPath(999, 0, 999);
+    assertEquals(1, slices.size());
+    assertEquals(1000, slices.getFirst().remaining());
+
+    assertThrows(IllegalArgumentException.class, () -> pathLa.ancestorPath(10, 0, 11));
+  }
+
+  @Test
+  public void testKthOnPathAndRerootedQueries() {
+
+    int n = 3000;
+    Random rand = new Random(34);
+    int[] parents = TestTrees.randomTree(n, 6, rand);
+    LinearLevelAncestor la = TestTrees.build(new LinearLevelAncestor(n), parents);
+
+    for (int i = 0; i < 500; i++) {
+      int u = rand.nextInt(n);
+      int v = rand.nextInt(n);
+
+      // Naive path: u up to the LCA, then down to v
+      List<Integer> upFromU = new ArrayList<>();
+      List<Integer> upFromV = new ArrayList<>();
+      int a = u, b = v;
+      while (getDepthNaive(a, parents) > getDepthNaive(b, parents)) { upFromU.add(a); a = parents[a]; }
+      while (getDepthNaive(b, parents) > getDepthNaive(a, parents)) { upFromV.add(b); b = parents[b]; }
+      while (a != b) {
+        upFromU.add(a); a = parents[a];
+        upFromV.add(b); b = parents[b];
+      }
+      List<Integer> path = new ArrayList<>(upFromU);
+      path.add(a);
+      for (int j = upFromV.size() - 1; j >= 0; j--) {
+        path.add(upFromV.get(j));
+      }
+
+      assertEquals(a, la.lca(u, v));
+      for (int k = 0; k < path.size(); k++) {
+        assertEquals(path.get(k), la.kthOnPath(u, v, k), String.format("Path %d -> %d, k = %d", u, v, k));
+        // Rooted at u, the ancestor of v at depth k is the k-th node of the path
+        assertEquals(path.get(k), la.queryRerooted(u, v, k));
+      }
+      assertEquals(-1, la.kthOnPath(u, v, path.size()));
+      assertEquals(-1, la.kthOnPath(u, v, -1));
+    }
+  }
+
+  /**
+   *       0
+   *     /   \
+   *    1     2
+   *   / \     \
+   *  3   4     5
+   *  |         |
+   *  6         7
+   */
+  @Test
+  public void testLevelSuccessorPredecessorAndCount() {
+
+    LinearLevelAncestor la = new LinearLevelAncestor(8);
+    // Children are visited in reverse order of insertion -> the DFS visits 1 before 2 and 3 before 4
+    la.addEdge(0, 2); la.addEdge(0, 1);
+    la.addEdge(1, 4); la.addEdge(1, 3);
+    la.addEdge(2, 5);
+    la.addEdge(3, 6); la.addEdge(5, 7);
+    la.preprocess(0);
+
+    assertEquals(4, la.levelSuccessor(3));
+    assertEquals(5, la.levelSuccessor(4));
+    assertEquals(-1, la.levelSuccessor(5));
+    assertEquals(3, la.levelPredecessor(4));
+    assertEquals(-1, la.levelPredecessor(3));
+    assertEquals(7, la.levelSuccessor(6));
+    assertEquals(-1, la.levelSuccessor(0));
+
+    assertEquals(2, la.subtreeLevelCount(1, 2));
+    assertEquals(1, la.subtreeLevelCount(1, 3));
+    assertEquals(2, la.subtreeLevelCount(0, 3));
+    assertEquals(1, la.subtreeLevelCount(4, 2));
+    assertEquals(0, la.subtreeLevelCount(4, 3));
+    assertEquals(0, la.subtreeLevelCount(4, 1));
+    assertEquals(0, la.subtreeLevelCount(0, 4));
+
+    // The levels follow the tree after an update, once they are rebuilt
+    la.cut(7);
+    la.link(4, 7);
+    la.applyUpdates();
+    assertThrows(IllegalStateException.class, () -> la.levelSuccessor(7));
+    la.rebuildLevels();
+    assertEquals(6, la.levelPredecessor(7));
+    assertEquals(-1, la.levelSuccessor(7));
+    assertEquals(2, la.subtreeLevelCount(1, 3));
+    assertEquals(0, la.subtreeLevelCount(2, 3));
+  }
+
+  @Test
+  public void testLevelQueriesOnLargeRandomTree() {
+
+    int n = 4000;
+    Random rand = new Random(35);
+    int[] parents = TestTrees.randomTree(n, 5, rand);
+    LinearLevelAncestor la = TestTrees.build(new LinearLevelAncestor(n), parents);
+
+    int[] depth = new int[n];
+    int maxDepth = 0;
+    for (int i = 1; i < n; i++) {
+      depth[i] = depth[parents[i]] + 1;
+      maxDepth = Math.max(maxDepth, depth[i]);
+    }
+
+    // Every level is one successor chain, consistent with the predecessors
+    int[] seen = new int[maxDepth + 1];
+    for (int u = 0; u < n; u++) {
+      if (la.levelPredecessor(u) != -1) continue;
+      for (int v = u; v != -1; v = la.levelSuccessor(v)) {
+        assertEquals(depth[u], depth[v]);
+        int next = la.levelSuccessor(v);
+        if (next != -1) assertEquals(v, la.levelPredecessor(next));
+        seen[depth[v]]++;
+      }
+    }
+    int[] expected = new int[maxDepth + 1];
+    for (int u = 0; u < n; u++) {
+      expected[depth[u]]++;
+    }
+    assertArrayEquals(expected, seen);
+
+    for (int i = 0; i < 1000; i++) {
+      int u = rand.nextInt(n);
+      int d = depth[u] + rand.nextInt(20);
+      int count = 0;
+      for (int v = 0; v < n; v++) {
+        if (depth[v] == d && isInSubtree(v, u, parents)) count++;
+      }
+      assertEquals(count, la.subtreeLevelCount(u, d), String.format("Node %d, depth %d", u, d));
+    }
+  }
+
+  @Test
+  public void testSparseJumpPointersMatchNaive() {
+
+    int n = 70000;
+    Random rand = new Random(37);
+    int[] parents = TestTrees.randomTree(n, 32, rand);
+    int[] depth = new int[n];
+    long[] weights = new long[n];
+    long[] weightedDepth = new long[n];
+    for (int i = 1; i < n; i++) {
+      depth[i] = depth[parents[i]] + 1;
+      weights[i] = rand.nextInt(10);
+      weightedDepth[i] = weightedDepth[parents[i]] + weights[i];
+    }
+
+    for (int shift = 0; shift <= 3; shift++) {
+      for (int scale = 1; scale <= 3; scale++) {
+        LinearLevelAncestor la = TestTrees.build(new LinearLevelAncestor(n, shift, scale), parents);
+        la.preprocessWeights(weights);
+
+        for (int k = 0; k < 3000; k++) {
+          int u = rand.nextInt(n);
+          int targetDepth = rand.nextInt(depth[u] + 1);
+          int expected = u;
+          while (depth[expected] > targetDepth) {
+            expected = parents[expected];
+          }
+          assertEquals(expected, la.query(u, targetDepth),
+            String.format("shift %d, scale %d: Node %d, Target %d", shift, scale, u, targetDepth));
+
+          long limit = rand.nextLong(weightedDepth[u] + 1);
+          expected = u;
+          while (weightedDepth[expected] > limit) {
+            expected = parents[expected];
+          }
+          assertEquals(expected, la.weightedQuery(u, limit),
+            String.format("shift %d, scale %d: Node %d, Limit %d", shift, scale, u, limit));
+        }
+      }
+    }
+    assertThrows(IllegalArgumentException.class, () -> new LinearLevelAncestor(10, 5, 1));
+    assertThrows(IllegalArgumentException.class, () -> new LinearLevelAncestor(10, 0, 0));
+  }
+
+  /**
+   * A scale far above the cap gives Micro-trees of up to 16 nodes, whose 31-bit shape bitmasks must not collide
+   */
+  @Test
+  public void testLargestMicroTreesMatchNaive() {
+
+    int n = 5000;
+    Random rand = new Random(17);
+    for (String shape : TestTrees.SHAPES) {
+      int[] parents = TestTrees.shape(shape, n, rand);
+      int[] depth = new int[n];
+      for (int i = 1; i < n; i++) {
+        depth[i] = depth[parents[i]] + 1;
+      }
+      LinearLevelAncestor la = TestTrees.build(new LinearLevelAncestor(n, 0, 100), parents);
+
+      for (int k = 0; k < 3000; k++) {
+        int u = rand.nextInt(n);
+        int targetDepth = rand.nextInt(depth[u] + 1);
+        int expected = u;
+        while (depth[expected] > targetDepth) {
+          expected = parents[expected];
+        }
+        assertEquals(expected, la.query(u, targetDepth), String.format("%s: Node %d, Target %d", shape, u, targetDepth));
+      }
+    }
+  }
+
+  @Test
+  public void testStampedSubtreesShareMicroMappings() {
+
+    Random rand = new Random(38);
+    int[] template = TestTrees.randomTree(40, 4, rand);
+    int[] parents = TestTrees.templateTree(2000, template, rand);
+    int n = parents.length;
+    assertEquals(0, TestTrees.build(new LinearLevelAncestor(n), parents).distinctMicroMappings());
+    LinearLevelAncestor la = TestTrees.build(new LinearLevelAncestor(n, 0, 1, true), parents);
+
+    // The same numbering inside every copy -> one mapping per distinct Micro-tree of the template (plus the backbone)
+    assertTrue(la.distinctMicroMappings() < 500, "Distinct mappings: " + la.distinctMicroMappings());
+
+    for (int round = 0; round < 2; round++) {
+      for (int k = 0; k < 5000; k++) {
+        int u = rand.nextInt(n);
+        int targetDepth = rand.nextInt(getDepthNaive(u, parents) + 1);
+        assertEquals(getAncestorNaive(u, targetDepth, parents), la.query(u, targetDepth),
+          String.format("Round %d: Node %d, Target %d", round, u, targetDepth));
+      }
+
+      // Moving subtrees must not touch the mappings shared with other copies
+      boolean[] moved = new boolean[n];
+      for (int m = 0; m < 20; m++) {
+        int child;
+        do {
+          child = 1 + rand.nextInt(n - 1);
+        } while (moved[child]);
+        moved[child] = true;
+        int newParent;
+        do {
+          newParent = rand.nextInt(n);
+        } while (isInSubtree(newParent, child, parents));
+        la.cut(child);
+        la.link(newParent, child);
+        parents[child] = newParent;
+      }
+      la.applyUpdates();
+    }
+  }
+
+  private boolean isInSubtree(int u, int subtreeRoot, int[] parents) {
+
+    while (u != 0) {
+      if (u == subtreeRoot) return true;
+      u = parents[u];
+    }
+    return subtreeRoot == 0;
+  }
+
   private int getDepthNaive(int u, int[] parents) {
 
     int d = 0;
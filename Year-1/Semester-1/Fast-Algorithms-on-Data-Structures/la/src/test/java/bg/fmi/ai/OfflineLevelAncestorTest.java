@@ -0,0 +1,68 @@
+package bg.fmi.ai;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class OfflineLevelAncestorTest {
+
+  /**
+   *   0
+   * /   \
+   * 1     2
+   * / \   / \
+   * 3   4 5   6
+   */
+  @Test
+  public void testBinaryTree() {
+
+    OfflineLevelAncestor offline = new OfflineLevelAncestor(7);
+    offline.addEdge(0, 1); offline.addEdge(0, 2);
+    offline.addEdge(1, 3); offline.addEdge(1, 4);
+    offline.addEdge(2, 5); offline.addEdge(2, 6);
+    offline.preprocess(0);
+
+    int[] answers = offline.queryAll(
+      new int[]{3, 3, 3, 6, 6, 0, 4},
+      new int[]{0, 1, 2, 1, 3, 0, 1});
+
+    assertArrayEquals(new int[]{0, 1, 3, 2, -1, 0, 1}, answers);
+    assertEquals(2, offline.query(5, 1));
+  }
+
+  @Test
+  public void testMatchesOnlineIndexOnRandomTree() {
+
+    int n = 2000;
+    Random rand = new Random(27);
+    LinearLevelAncestor la = new LinearLevelAncestor(n);
+    OfflineLevelAncestor offline = new OfflineLevelAncestor(n);
+
+    // Root is not 0 and ids are not in DFS order
+    int root = 7;
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = (i + root) % n;
+    }
+    for (int i = 1; i < n; i++) {
+      int parent = order[Math.max(0, i - 1 - rand.nextInt(10))];
+      la.addEdge(parent, order[i]);
+      offline.addEdge(parent, order[i]);
+    }
+    la.preprocess(root);
+    offline.preprocess(root);
+
+    int queriesCount = 50_000;
+    int[] nodes = new int[queriesCount];
+    int[] depths = new int[queriesCount];
+    for (int q = 0; q < queriesCount; q++) {
+      nodes[q] = rand.nextInt(n);
+      depths[q] = rand.nextInt(n / 4);
+    }
+
+    assertArrayEquals(la.queryAll(nodes, depths), offline.queryAll(nodes, depths));
+  }
+}
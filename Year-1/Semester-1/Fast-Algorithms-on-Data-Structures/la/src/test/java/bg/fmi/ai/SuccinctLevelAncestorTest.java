@@ -0,0 +1,57 @@
+package bg.fmi.ai;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+public class SuccinctLevelAncestorTest {
+
+  @Test
+  public void testParentDepthAndQueriesOnEveryShape() {
+
+    int n = 20000;
+    Random rand = new Random(36);
+
+    for (String shape : TestTrees.SHAPES) {
+      int[] parents = TestTrees.shape(shape, n, rand);
+      int[] depth = new int[n];
+      for (int i = 1; i < n; i++) {
+        depth[i] = depth[parents[i]] + 1;
+      }
+      SuccinctLevelAncestor la = TestTrees.build(new SuccinctLevelAncestor(n), parents);
+
+      for (int u = 0; u < n; u++) {
+        assertEquals(depth[u], la.depth(u), shape + ": depth of " + u);
+        assertEquals(u == 0 ? -1 : parents[u], la.parent(u), shape + ": parent of " + u);
+      }
+      for (int k = 0; k < 20000; k++) {
+        int u = rand.nextInt(n);
+        int targetDepth = rand.nextInt(depth[u] + 2);
+        int expected = targetDepth > depth[u] ? -1 : u;
+        for (int d = depth[u]; d > targetDepth; d--) {
+          expected = parents[expected];
+        }
+        assertEquals(expected, la.query(u, targetDepth), String.format("%s: Node %d, Target %d", shape, u, targetDepth));
+      }
+    }
+  }
+
+  /**
+   * Ids in preorder need no id maps: about 2N bits plus small directories
+   */
+  @Test
+  public void testFootprintWithPreorderIds() {
+
+    int n = 1 << 16;
+    // In a path node i is visited i-th
+    SuccinctLevelAncestor la = TestTrees.build(new SuccinctLevelAncestor(n),
+      TestTrees.shape("path", n, new Random(1)));
+
+    long bits = la.sizeInBytes() * 8;
+    assertTrue(bits < 2.5 * n, "Footprint " + bits + " bits for " + n + " nodes");
+    assertEquals(n - 2, la.query(n - 1, n - 2));
+  }
+}
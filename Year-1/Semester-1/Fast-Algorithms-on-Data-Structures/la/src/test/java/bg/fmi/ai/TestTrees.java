@@ -0,0 +1,81 @@
+package bg.fmi.ai;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tree and query fixtures of the tests, as parent arrays with node 0 as the root and parents[i] < i
+ */
+final class TestTrees {
+
+  static final String[] SHAPES = {"random", "shallow", "deep", "path", "star", "broom", "binary"};
+
+  private TestTrees() {
+  }
+
+  static <T extends LevelAncestor> T build(T la, int[] parents) {
+
+    for (int i = 1; i < parents.length; i++) {
+      la.addEdge(parents[i], i);
+    }
+    la.preprocess(0);
+    return la;
+  }
+
+  static int[] shape(String name, int n, Random rand) {
+
+    int[] parents = new int[n];
+    for (int i = 1; i < n; i++) {
+      parents[i] = switch (name) {
+        case "random" -> rand.nextInt(i);
+        case "shallow" -> rand.nextInt(Math.min(i, 16));
+        case "deep" -> Math.max(0, i - 1 - rand.nextInt(4));
+        case "path" -> i - 1;
+        case "star" -> 0;
+        case "broom" -> i < n / 2 ? i - 1 : n / 2 - 1;
+        case "binary" -> (i - 1) / 2;
+        default -> throw new IllegalArgumentException("Unknown shape " + name);
+      };
+    }
+    return parents;
+  }
+
+  // Parent is chosen among the last 'window' nodes, the expected height is about 2n / window
+  static int[] randomTree(int n, int window, Random rand) {
+
+    int[] parents = new int[n];
+    for (int i = 1; i < n; i++) {
+      parents[i] = Math.max(0, i - 1 - rand.nextInt(window));
+    }
+    return parents;
+  }
+
+  // A random backbone of 'copies' nodes (ids 0..copies-1), every backbone node gets a copy of 'template'
+  // whose ids are consecutive and in the template's order
+  static int[] templateTree(int copies, int[] template, Random rand) {
+
+    int size = template.length;
+    int[] parents = Arrays.copyOf(randomTree(copies, 32, rand), copies * (size + 1));
+    for (int copy = 0; copy < copies; copy++) {
+      int base = copies + copy * size;
+      parents[base] = copy;
+      for (int i = 1; i < size; i++) {
+        parents[base + i] = base + template[i];
+      }
+    }
+    return parents;
+  }
+
+  // Random nodes with a random target depth between the root and the node
+  static void randomQueries(int[] parents, int[] nodes, int[] depths, Random rand) {
+
+    int[] depth = new int[parents.length];
+    for (int i = 1; i < parents.length; i++) {
+      depth[i] = depth[parents[i]] + 1;
+    }
+    for (int q = 0; q < nodes.length; q++) {
+      nodes[q] = rand.nextInt(parents.length);
+      depths[q] = rand.nextInt(depth[nodes[q]] + 1);
+    }
+  }
+}